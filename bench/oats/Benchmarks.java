@@ -0,0 +1,379 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+//Measures the overhead of the build tool itself: parsing build files, putting command lines together and
+//expanding DIRECTORY: entries, each with 10, 1000 and 100000 entries.
+//Every benchmark is warmed up and then run for a few fixed-length iterations, the result is the average number
+//of operations per second and the bytes allocated per operation by all threads.
+//
+//    java -cp out/production/OBGBuild oats.Benchmarks [--write file] [--compare file] [name filter]
+//
+//--write stores the results as a baseline, --compare reports every benchmark that got more than 1.5 times
+//slower than the baseline and exits with 1 if there is one. bench/baseline.txt is the committed baseline.
+public class Benchmarks
+{
+    private static final String VERSION = "OBGBUILD_BENCHMARKS 1";
+
+    private static final long WARMUP_TIME = 1000;
+    private static final long ITERATION_TIME = 1000;
+    private static final int ITERATIONS = 3;
+    private static final int[] SIZES = { 10, 1000, 100000 };
+
+    private static final double REGRESSION_FACTOR = 1.5;
+
+    private interface Operation
+    {
+        Object run() throws Exception;
+    }
+
+    private static class Result
+    {
+        final double operationsPerSecond;
+        final double bytesPerOperation;
+
+        Result(double operationsPerSecond, double bytesPerOperation)
+        {
+            this.operationsPerSecond = operationsPerSecond;
+            this.bytesPerOperation = bytesPerOperation;
+        }
+    }
+
+    //Keeps the JIT from dropping work whose result is never used.
+    private static volatile int sink;
+
+    private final Map<String, Operation> benchmarks = new LinkedHashMap<>();
+    private final Path directory;
+
+    private Benchmarks(Path directory)
+    {
+        this.directory = directory;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String writeFile = null;
+        String compareFile = null;
+        String filter = "";
+
+        for(int i = 0; i < args.length; ++i)
+        {
+            if(args[i].equals("--write") && i + 1 < args.length)
+            {
+                writeFile = args[++i];
+            }
+            else if(args[i].equals("--compare") && i + 1 < args.length)
+            {
+                compareFile = args[++i];
+            }
+            else
+            {
+                filter = args[i];
+            }
+        }
+
+        Path directory = Files.createTempDirectory("obgbuild-bench");
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        try
+        {
+            Benchmarks benchmarks = new Benchmarks(directory);
+            benchmarks.setUp();
+
+            System.out.println(String.format("%-28s %14s %14s %12s", "benchmark", "ops/s", "bytes/op", "MB/s"));
+
+            for(Map.Entry<String, Operation> e : benchmarks.benchmarks.entrySet())
+            {
+                if(!e.getKey().contains(filter))
+                {
+                    continue;
+                }
+
+                Result result = measure(e.getValue());
+                results.put(e.getKey(), result);
+
+                System.out.println(String.format("%-28s %14.1f %14.0f %12.1f", e.getKey(), result.operationsPerSecond,
+                        result.bytesPerOperation, result.bytesPerOperation * result.operationsPerSecond / (1024 * 1024)));
+            }
+        }
+        finally
+        {
+            delete(directory);
+        }
+
+        if(writeFile != null)
+        {
+            write(new File(writeFile), results);
+        }
+
+        if(compareFile != null && !compare(read(new File(compareFile)), results))
+        {
+            System.exit(1);
+        }
+    }
+
+    private void setUp() throws IOException
+    {
+        for(int size : SIZES)
+        {
+            Path sources = createSources(size);
+
+            CharBuffer buildFile = CharBuffer.wrap(createBuildFile(sources, size));
+            benchmarks.put("parse/" + size, () -> new Parser(buildFile).parseFile());
+
+            for(CompilerType compiler : CompilerType.values())
+            {
+                Builder builder = new Builder(createBuildInfo(compiler, size), new BuildOptions());
+                String name = compiler.name().toLowerCase().replace('_', '-');
+
+                benchmarks.put("params-" + name + "/" + size, builder::constructCompilerParams);
+
+                if(compiler != CompilerType.OTHER && compiler != CompilerType.CLANG)
+                {
+                    List<String> objects = createObjects(size);
+                    benchmarks.put("link-" + name + "/" + size, () -> builder.constructLinkerParams(objects));
+                }
+            }
+
+            List<String> entries = Collections.singletonList(sources + "/**");
+            File listing = directory.resolve("sources-" + size).toFile();
+
+            SourceScanner scanner = SourceScanner.load(listing);
+            scanner.scan(entries);
+            scanner.save();
+
+            benchmarks.put("scan/" + size, () -> SourceScanner.load(null).scan(entries));
+            benchmarks.put("scan-cached/" + size, () -> SourceScanner.load(listing).scan(entries));
+        }
+    }
+
+    //size .c files, a hundred in every directory.
+    private Path createSources(int size) throws IOException
+    {
+        Path root = directory.resolve("src-" + size);
+
+        for(int i = 0; i < size; ++i)
+        {
+            Path subdirectory = root.resolve("d" + (i / 100));
+            if(i % 100 == 0)
+            {
+                Files.createDirectories(subdirectory);
+            }
+
+            Files.createFile(subdirectory.resolve("f" + i + ".c"));
+        }
+
+        return root;
+    }
+
+    //One FILE: line per source, with an INCLUDE: and a CONSTANT: for every directory of them.
+    private static String createBuildFile(Path sources, int size)
+    {
+        StringBuilder result = new StringBuilder();
+        result.append("COMPILER:gcc\nC_VERSION:c17\nBUILD:release\nTYPE:executable\nOUTPUT:bench\n");
+
+        for(int i = 0; i < size; ++i)
+        {
+            Path subdirectory = sources.resolve("d" + (i / 100));
+            if(i % 100 == 0)
+            {
+                result.append("INCLUDE:").append(subdirectory).append('\n');
+                result.append("CONSTANT:DIRECTORY_").append(i / 100).append("=1\n");
+            }
+
+            result.append("FILE:").append(subdirectory.resolve("f" + i + ".c")).append('\n');
+        }
+
+        return result.toString();
+    }
+
+    private static BuildInfo createBuildInfo(CompilerType compiler, int size)
+    {
+        BuildInfo buildInfo = new BuildInfo();
+        buildInfo.compiler = compiler;
+        buildInfo.compilerFlags = "-Wextra -Wno-unused-parameter";
+        buildInfo.linkedFlags = "-Wl,--as-needed";
+        buildInfo.customBuildFlags = "-O2 -pipe";
+
+        for(int i = 0; i < size; ++i)
+        {
+            buildInfo.addConstant("CONSTANT_" + i + "=" + i);
+            buildInfo.addIncludePath("include/directory" + i);
+            buildInfo.addLibrary("library" + i);
+        }
+
+        return buildInfo;
+    }
+
+    private static List<String> createObjects(int size)
+    {
+        List<String> result = new ArrayList<>();
+
+        for(int i = 0; i < size; ++i)
+        {
+            result.add(".obgbuild/obj/file" + i + OSInfo.getObjectFileExtension());
+        }
+
+        return result;
+    }
+
+    private static Result measure(Operation operation) throws Exception
+    {
+        run(operation, WARMUP_TIME);
+
+        double operationsPerSecond = 0;
+        double bytesPerOperation = 0;
+
+        for(int i = 0; i < ITERATIONS; ++i)
+        {
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            long operations = run(operation, ITERATION_TIME);
+
+            long time = System.nanoTime() - start;
+            bytes = getAllocatedBytes() - bytes;
+
+            operationsPerSecond += operations * 1e9 / time / ITERATIONS;
+            bytesPerOperation += (double)bytes / operations / ITERATIONS;
+        }
+
+        return new Result(operationsPerSecond, bytesPerOperation);
+    }
+
+    //Runs the operation until the time is up, at least once.
+    private static long run(Operation operation, long milliseconds) throws Exception
+    {
+        long end = System.nanoTime() + milliseconds * 1000000;
+        long operations = 0;
+
+        do
+        {
+            sink ^= System.identityHashCode(operation.run());
+            ++operations;
+        }
+        while(System.nanoTime() < end);
+
+        return operations;
+    }
+
+    //Summed over every thread because the parser and the scanner work on the common pool. -1 on JVMs that
+    //don't count allocations.
+    private static long getAllocatedBytes()
+    {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+        {
+            return -1;
+        }
+
+        long total = 0;
+        for(long bytes : ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(threads.getAllThreadIds()))
+        {
+            total += Math.max(0, bytes);
+        }
+
+        return total;
+    }
+
+    private static boolean compare(Map<String, Result> baseline, Map<String, Result> results)
+    {
+        boolean passed = true;
+
+        for(Map.Entry<String, Result> e : results.entrySet())
+        {
+            Result before = baseline.get(e.getKey());
+            if(before == null)
+            {
+                continue;
+            }
+
+            double ratio = before.operationsPerSecond / e.getValue().operationsPerSecond;
+            if(ratio > REGRESSION_FACTOR)
+            {
+                System.out.println(String.format("Regression: %s is %.1fx slower than the baseline (%.1f ops/s, was %.1f).",
+                        e.getKey(), ratio, e.getValue().operationsPerSecond, before.operationsPerSecond));
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    private static Map<String, Result> read(File file) throws IOException
+    {
+        Map<String, Result> results = new LinkedHashMap<>();
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                throw new IOException(file + " is not a benchmark baseline");
+            }
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields[0].equals("R") && fields.length == 4)
+                {
+                    results.put(fields[1], new Result(Double.parseDouble(fields[2]), Double.parseDouble(fields[3])));
+                }
+            }
+        }
+
+        return results;
+    }
+
+    private static void write(File file, Map<String, Result> results) throws IOException
+    {
+        try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+
+            for(Map.Entry<String, Result> e : results.entrySet())
+            {
+                writer.write(String.format(Locale.ROOT, "R\t%s\t%.1f\t%.0f", e.getKey(), e.getValue().operationsPerSecond, e.getValue().bytesPerOperation));
+                writer.newLine();
+            }
+        }
+    }
+
+    private static void delete(Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException
+            {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,411 @@
+package oats;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+//Builds a generated project from start to end the way a user would, one obgbuild process per build:
+//
+//    cold    nothing built and an empty object cache
+//    no-op   again without changing anything
+//    touch   after changing one header that part of the sources include
+//    warm    the build directory removed, but the object cache from the builds before still there
+//
+//Every build writes a trace. Compiler time is the time at least one compiler or linker was running, whatever
+//else the wall time holds is the overhead of the build tool itself, JVM start included. Link time is the part of
+//it spent linking.
+//
+//    java -cp out/production/OBGBuild oats.BuildBenchmark [--files n] [--fan-out n] [--depth n] [--nesting n]
+//        [--compiler gcc/clang] [--build release/debug/...] [--linker bfd/gold/lld/mold] [--runs n]
+//        [--output results.json] [--keep directory]
+//
+//Every scenario is run --runs times and the median is reported. The results go to the JSON file so two versions
+//of obgbuild can be compared on the same machine.
+public class BuildBenchmark
+{
+    private static final String[] SCENARIOS = { "cold", "no-op", "touch", "warm" };
+    private static final String[] COMPILER_CATEGORIES = { "compile", "preprocess", "link" };
+
+    private static final Pattern SPAN = Pattern.compile("\"cat\":\"(\\w+)\",\"ph\":\"X\",\"ts\":([0-9.]+),\"dur\":([0-9.]+)");
+
+    private static class Measurement
+    {
+        final double wall;
+        final double compiler;
+        final double compilerCpu;
+        final double link;
+        final int compiles;
+
+        Measurement(double wall, double compiler, double compilerCpu, double link, int compiles)
+        {
+            this.wall = wall;
+            this.compiler = compiler;
+            this.compilerCpu = compilerCpu;
+            this.link = link;
+            this.compiles = compiles;
+        }
+
+        double getOverhead()
+        {
+            return Math.max(0, wall - compiler);
+        }
+    }
+
+    private final Path project;
+    private final Path cache;
+    private final Path trace;
+    private final ProjectGenerator generator;
+
+    private BuildBenchmark(Path directory, ProjectGenerator generator)
+    {
+        this.project = directory.resolve("project");
+        this.cache = directory.resolve("cache");
+        this.trace = directory.resolve("trace.json");
+        this.generator = generator;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int files = 200;
+        int fanOut = 5;
+        int depth = 3;
+        int nesting = 2;
+        int runs = 3;
+        String compiler = null;
+        String buildType = "release";
+        String linker = null;
+        String output = "benchmark.json";
+        String keep = null;
+
+        for(int i = 0; i + 1 < args.length; i += 2)
+        {
+            switch(args[i])
+            {
+                case "--files": files = Integer.parseInt(args[i + 1]); break;
+                case "--fan-out": fanOut = Integer.parseInt(args[i + 1]); break;
+                case "--depth": depth = Integer.parseInt(args[i + 1]); break;
+                case "--nesting": nesting = Integer.parseInt(args[i + 1]); break;
+                case "--runs": runs = Integer.parseInt(args[i + 1]); break;
+                case "--compiler": compiler = args[i + 1]; break;
+                case "--build": buildType = args[i + 1]; break;
+                case "--linker": linker = args[i + 1]; break;
+                case "--output": output = args[i + 1]; break;
+                case "--keep": keep = args[i + 1]; break;
+                default:
+                {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        if(compiler == null)
+        {
+            compiler = getCompilerVersion("gcc") != null ? "gcc" : "clang";
+        }
+
+        String version = getCompilerVersion(compiler);
+        if(version == null)
+        {
+            System.err.println("Could not run " + compiler + ".");
+            System.exit(1);
+        }
+
+        Path directory = keep != null ? Paths.get(keep).toAbsolutePath() : Files.createTempDirectory("obgbuild-benchmark");
+        ProjectGenerator generator = new ProjectGenerator(files, fanOut, depth, nesting);
+
+        Map<String, List<Measurement>> results = new LinkedHashMap<>();
+        for(String scenario : SCENARIOS)
+        {
+            results.put(scenario, new ArrayList<>());
+        }
+
+        try
+        {
+            delete(directory.resolve("project"));
+            generator.generate(directory.resolve("project"), compiler, buildType, linker);
+
+            BuildBenchmark benchmark = new BuildBenchmark(directory, generator);
+            for(int i = 0; i < runs; ++i)
+            {
+                benchmark.run(results, i);
+            }
+        }
+        finally
+        {
+            if(keep == null)
+            {
+                delete(directory);
+            }
+        }
+
+        writeResults(new File(output), generator, compiler, version, buildType, linker, runs, results);
+        System.out.println("Results written to " + output);
+    }
+
+    private void run(Map<String, List<Measurement>> results, int run) throws IOException, InterruptedException
+    {
+        delete(cache);
+        clean();
+        results.get("cold").add(build("cold", run));
+
+        results.get("no-op").add(build("no-op", run));
+
+        //A declaration rather than a comment, the preprocessor would drop a comment and the object cache would
+        //hand out the old objects. Each run adds another one, so the change isn't undone later.
+        String change = "extern int touched_" + run + ";\n";
+        Files.write(project.resolve(generator.getTouchedHeader()), change.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        results.get("touch").add(build("touch", run));
+
+        clean();
+        results.get("warm").add(build("warm", run));
+    }
+
+    private Measurement build(String scenario, int run) throws IOException, InterruptedException
+    {
+        Files.deleteIfExists(trace);
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("oats.OBGBuild");
+        command.add("build.obg");
+        command.add("--trace");
+        command.add(trace.toString());
+
+        ProcessBuilder builder = new ProcessBuilder(command).directory(project.toFile()).redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.appendTo(project.resolve("benchmark.log").toFile()));
+
+        //The object cache of the benchmark starts empty and stays out of the one of the user.
+        builder.environment().put("XDG_CACHE_HOME", cache.toString());
+        builder.environment().put("LOCALAPPDATA", cache.toString());
+        builder.environment().remove("OBGBUILD_REMOTE_CACHE");
+        builder.environment().remove("MAKEFLAGS");
+
+        long start = System.nanoTime();
+        int result = builder.start().waitFor();
+        double wall = (System.nanoTime() - start) / 1e6;
+
+        if(result != 0)
+        {
+            throw new IOException("The " + scenario + " build failed, see " + project.resolve("benchmark.log"));
+        }
+
+        Measurement measurement = readTrace(wall);
+        System.out.println(String.format(Locale.ROOT, "run %d %-6s %9.1f ms wall %9.1f ms compiler %9.1f ms link %9.1f ms overhead %5d compiles",
+                run + 1, scenario, measurement.wall, measurement.compiler, measurement.link, measurement.getOverhead(), measurement.compiles));
+
+        return measurement;
+    }
+
+    //Compiler time is the union of the compiler spans, so parallel compiles count once.
+    private Measurement readTrace(double wall) throws IOException
+    {
+        String content = new String(Files.readAllBytes(trace), StandardCharsets.UTF_8);
+
+        List<double[]> spans = new ArrayList<>();
+        double cpu = 0;
+        double link = 0;
+        int compiles = 0;
+
+        Matcher matcher = SPAN.matcher(content);
+        while(matcher.find())
+        {
+            String category = matcher.group(1);
+            boolean compilerSpan = false;
+            for(String c : COMPILER_CATEGORIES)
+            {
+                compilerSpan |= c.equals(category);
+            }
+
+            if(!compilerSpan)
+            {
+                continue;
+            }
+
+            double start = Double.parseDouble(matcher.group(2)) / 1000;
+            double duration = Double.parseDouble(matcher.group(3)) / 1000;
+
+            spans.add(new double[] { start, start + duration });
+            cpu += duration;
+
+            if(category.equals("compile"))
+            {
+                ++compiles;
+            }
+            else if(category.equals("link"))
+            {
+                link += duration;
+            }
+        }
+
+        spans.sort((a, b) -> Double.compare(a[0], b[0]));
+
+        double union = 0;
+        double end = Double.NEGATIVE_INFINITY;
+        for(double[] span : spans)
+        {
+            if(span[1] <= end)
+            {
+                continue;
+            }
+
+            union += span[1] - Math.max(span[0], end);
+            end = span[1];
+        }
+
+        return new Measurement(wall, union, cpu, link, compiles);
+    }
+
+    //Everything the builds left next to the output.
+    private void clean() throws IOException
+    {
+        delete(project.resolve(".obgbuild"));
+        Files.deleteIfExists(project.resolve("bench" + OSInfo.getExecutableExtension()));
+    }
+
+    private static String getCompilerVersion(String compiler)
+    {
+        try
+        {
+            Process process = new ProcessBuilder(compiler, "--version").redirectErrorStream(true).start();
+            String output = new String(readAll(process), StandardCharsets.UTF_8);
+
+            if(!process.waitFor(10, TimeUnit.SECONDS) || process.exitValue() != 0)
+            {
+                return null;
+            }
+
+            return output.split("\\R", 2)[0].trim();
+        }
+        catch(IOException | InterruptedException e)
+        {
+            return null;
+        }
+    }
+
+    private static byte[] readAll(Process process) throws IOException
+    {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        int read;
+        while((read = process.getInputStream().read(buffer)) != -1)
+        {
+            result.write(buffer, 0, read);
+        }
+
+        return result.toByteArray();
+    }
+
+    private static void writeResults(File file, ProjectGenerator generator, String compiler, String version, String buildType,
+            String linker, int runs, Map<String, List<Measurement>> results) throws IOException
+    {
+        try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write("{\n");
+            writer.write("  \"version\": 1,\n");
+            writer.write("  \"compiler\": " + quote(compiler) + ",\n");
+            writer.write("  \"compilerVersion\": " + quote(version) + ",\n");
+            writer.write("  \"build\": " + quote(buildType) + ",\n");
+            writer.write("  \"linker\": " + quote(linker != null ? linker : "default") + ",\n");
+            writer.write("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+            writer.write("  \"os\": " + quote(System.getProperty("os.name")) + ",\n");
+            writer.write("  \"java\": " + quote(System.getProperty("java.version")) + ",\n");
+            writer.write("  \"project\": { \"files\": " + generator.files + ", \"fanOut\": " + generator.fanOut
+                    + ", \"depth\": " + generator.depth + ", \"nesting\": " + generator.nesting + " },\n");
+            writer.write("  \"runs\": " + runs + ",\n");
+            writer.write("  \"scenarios\": {\n");
+
+            int written = 0;
+            for(Map.Entry<String, List<Measurement>> e : results.entrySet())
+            {
+                List<Measurement> measurements = e.getValue();
+
+                writer.write("    " + quote(e.getKey()) + ": {");
+                writer.write(" \"wallMs\": " + format(median(measurements, m -> m.wall)));
+                writer.write(", \"compilerMs\": " + format(median(measurements, m -> m.compiler)));
+                writer.write(", \"compilerCpuMs\": " + format(median(measurements, m -> m.compilerCpu)));
+                writer.write(", \"linkMs\": " + format(median(measurements, m -> m.link)));
+                writer.write(", \"overheadMs\": " + format(median(measurements, Measurement::getOverhead)));
+                writer.write(", \"compiles\": " + (long)median(measurements, m -> m.compiles));
+                writer.write(" }" + (++written < results.size() ? "," : "") + "\n");
+            }
+
+            writer.write("  }\n}\n");
+        }
+    }
+
+    private static double median(List<Measurement> measurements, ToDoubleFunction<Measurement> field)
+    {
+        List<Double> values = new ArrayList<>();
+
+        for(Measurement m : measurements)
+        {
+            values.add(field.applyAsDouble(m));
+        }
+
+        if(values.isEmpty())
+        {
+            return 0;
+        }
+
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+
+    private static String format(double value)
+    {
+        return String.format(Locale.ROOT, "%.1f", value);
+    }
+
+    private static String quote(String value)
+    {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void delete(Path directory) throws IOException
+    {
+        if(!Files.exists(directory))
+        {
+            return;
+        }
+
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException
+            {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException
+            {
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,162 @@
+package oats;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+//Writes a synthetic C project and a build file for it, the same one for the same settings every time.
+//Sources are spread over src/ in directories nested nesting levels deep, four to a level, and each includes
+//fanOut headers from include/. Headers come in depth levels, every one includes two headers of the next level,
+//so touching a header of the first level rebuilds a known part of the project.
+public class ProjectGenerator
+{
+    public final int files;
+    public final int fanOut;
+    public final int depth;
+    public final int nesting;
+
+    private final int headersPerLevel;
+
+    public ProjectGenerator(int files, int fanOut, int depth, int nesting)
+    {
+        this.files = files;
+        this.fanOut = fanOut;
+        this.depth = depth;
+        this.nesting = nesting;
+
+        headersPerLevel = Math.max(fanOut, Math.max(10, files / 10));
+    }
+
+    //Returns the build file. linker is left out of it when it is null.
+    public Path generate(Path root, String compiler, String buildType, String linker) throws IOException
+    {
+        Path include = root.resolve("include");
+        Files.createDirectories(include);
+
+        for(int level = 0; level < depth; ++level)
+        {
+            for(int i = 0; i < headersPerLevel; ++i)
+            {
+                write(include.resolve(getHeaderName(level, i)), createHeader(level, i));
+            }
+        }
+
+        for(int i = 0; i < files; ++i)
+        {
+            Path source = root.resolve(getSourcePath(i));
+            Files.createDirectories(source.getParent());
+            write(source, createSource(i));
+        }
+
+        write(root.resolve("src").resolve("main.c"), "int main(void)\n{\n    return 0;\n}\n");
+
+        String buildFile = "COMPILER:" + compiler + "\n"
+                + "C_VERSION:c11\n"
+                + "BUILD:" + buildType + "\n"
+                + (linker != null ? "LINKER:" + linker + "\n" : "")
+                + "TYPE:executable\n"
+                + "OUTPUT:bench\n"
+                + "INCLUDE:include\n"
+                + "DIRECTORY:src/**\n";
+
+        Path result = root.resolve("build.obg");
+        write(result, buildFile);
+        return result;
+    }
+
+    //The header whose change rebuilds the sources that include it directly and through other headers.
+    public String getTouchedHeader()
+    {
+        return "include/" + getHeaderName(0, 0);
+    }
+
+    private String createHeader(int level, int index)
+    {
+        String guard = "H_" + level + "_" + index;
+        StringBuilder result = new StringBuilder();
+
+        result.append("#ifndef ").append(guard).append("\n#define ").append(guard).append("\n\n");
+
+        if(level + 1 < depth)
+        {
+            result.append("#include \"").append(getHeaderName(level + 1, index)).append("\"\n");
+            result.append("#include \"").append(getHeaderName(level + 1, (index + 1) % headersPerLevel)).append("\"\n\n");
+        }
+
+        result.append("struct s_").append(level).append('_').append(index).append("\n{\n");
+        result.append("    int values[").append(index % 7 + 1).append("];\n    double weight;\n};\n\n");
+
+        result.append("static inline int h_").append(level).append('_').append(index).append("(int x)\n{\n");
+        result.append("    return x * ").append(index + 3).append(" + ").append(level).append(";\n}\n\n");
+
+        result.append("#endif\n");
+        return result.toString();
+    }
+
+    private String createSource(int index)
+    {
+        StringBuilder result = new StringBuilder();
+        List<Integer> headers = getIncludedHeaders(index);
+
+        for(int header : headers)
+        {
+            result.append("#include \"").append(getHeaderName(0, header)).append("\"\n");
+        }
+
+        result.append("\nint f_").append(index).append("(int x)\n{\n    int result = x;\n\n");
+
+        for(int header : headers)
+        {
+            result.append("    result += h_0_").append(header).append("(result);\n");
+        }
+
+        result.append("\n    for(int i = 0; i < x; ++i)\n    {\n");
+        result.append("        result = result * 31 + i;\n    }\n\n");
+        result.append("    return result;\n}\n");
+
+        return result.toString();
+    }
+
+    private List<Integer> getIncludedHeaders(int index)
+    {
+        List<Integer> result = new ArrayList<>();
+
+        for(int i = 0; i < fanOut; ++i)
+        {
+            int header = (index * 7 + i * 13) % headersPerLevel;
+            if(!result.contains(header))
+            {
+                result.add(header);
+            }
+        }
+
+        return result;
+    }
+
+    private String getSourcePath(int index)
+    {
+        StringBuilder result = new StringBuilder("src");
+
+        int rest = index;
+        for(int i = 0; i < nesting; ++i)
+        {
+            result.append("/d").append(rest % 4);
+            rest /= 4;
+        }
+
+        return result.append("/file").append(index).append(".c").toString();
+    }
+
+    private static String getHeaderName(int level, int index)
+    {
+        return "h" + level + "_" + index + ".h";
+    }
+
+    private static void write(Path file, String content) throws IOException
+    {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
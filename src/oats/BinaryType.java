@@ -4,5 +4,6 @@ public enum BinaryType
 {
     OBJECT_LIB,
     SHARED_LIB,
+    STATIC_LIB,
     EXECUTABLE
 }
@@ -0,0 +1,155 @@
+package oats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+//Thin client for BuildDaemon: sends the command line over and prints whatever the build prints.
+//The environment and the process id go along, the build runs with the client's MAKEFLAGS and cache settings
+//and opens the jobserver descriptors the client inherited through /proc/<pid>/fd.
+public class BuildClient
+{
+    public static final int NO_DAEMON = -1;
+
+    public static int build(String[] args)
+    {
+        return send(args);
+    }
+
+    public static int stop()
+    {
+        int result = send(new String[]{"--daemon-stop"});
+        if(result == NO_DAEMON)
+        {
+            System.out.println("No build daemon is running in this directory.");
+            return 1;
+        }
+
+        return result;
+    }
+
+    private static int send(String[] args)
+    {
+        File daemonFile = BuildDaemon.getDaemonFile();
+        if(!daemonFile.isFile())
+        {
+            return NO_DAEMON;
+        }
+
+        int port;
+        String token;
+
+        try
+        {
+            List<String> lines = Files.readAllLines(daemonFile.toPath(), StandardCharsets.UTF_8);
+            port = Integer.parseInt(lines.get(0).trim());
+            token = lines.get(1).trim();
+        }
+        catch(IOException | RuntimeException e)
+        {
+            return NO_DAEMON;
+        }
+
+        SocketChannel channel;
+        try
+        {
+            channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+        catch(IOException e)
+        {
+            //Left behind by a daemon that didn't shut down cleanly.
+            return NO_DAEMON;
+        }
+
+        //Once the request is out the build belongs to the daemon, falling back now would build twice.
+        try(SocketChannel connection = channel)
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(connection)));
+            out.writeUTF(token);
+            out.writeInt(args.length);
+            for(String arg : args)
+            {
+                out.writeUTF(arg);
+            }
+
+            out.writeLong(getProcessId());
+            writeEnvironment(out);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(connection)));
+            while(true)
+            {
+                int type = in.readUnsignedByte();
+                int value = in.readInt();
+
+                if(type == BuildDaemon.EXIT)
+                {
+                    return value;
+                }
+
+                byte[] bytes = new byte[value];
+                in.readFully(bytes);
+
+                PrintStream stream = type == BuildDaemon.ERROR ? System.err : System.out;
+                stream.write(bytes, 0, bytes.length);
+                stream.flush();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Lost connection to the build daemon: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    //writeUTF stops at 64 KB, variables that long are left out rather than failing the build.
+    private static void writeEnvironment(DataOutputStream out) throws IOException
+    {
+        int count = 0;
+        for(Map.Entry<String, String> e : System.getenv().entrySet())
+        {
+            if(e.getKey().length() + e.getValue().length() <= BuildDaemon.MAX_VARIABLE_LENGTH)
+            {
+                ++count;
+            }
+        }
+
+        out.writeInt(count);
+        for(Map.Entry<String, String> e : System.getenv().entrySet())
+        {
+            if(e.getKey().length() + e.getValue().length() <= BuildDaemon.MAX_VARIABLE_LENGTH)
+            {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+        }
+    }
+
+    //Java 8 only tells through the name of the runtime, pid@host on every JVM that matters. -1 when it doesn't.
+    private static long getProcessId()
+    {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+
+        try
+        {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        }
+        catch(RuntimeException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package oats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+
+//Keeps a warm JVM around so small rebuilds don't pay for JVM startup and parsing the build file again.
+//A daemon serves the directory it was started in, which is also where every relative path of the build resolves.
+//It listens on a loopback port written to .obgbuild/daemon together with a token the client has to send first.
+public class BuildDaemon
+{
+    static final int OUTPUT = 0;
+    static final int ERROR = 1;
+    static final int EXIT = 2;
+
+    //Every character of an environment variable takes at most three bytes in writeUTF, which stops at 65535.
+    static final int MAX_VARIABLE_LENGTH = 65535 / 3;
+
+    private static class ParsedBuildFile
+    {
+        final String hash;
+        final BuildGraph graph;
+
+        ParsedBuildFile(String hash, BuildGraph graph)
+        {
+            this.hash = hash;
+            this.graph = graph;
+        }
+    }
+
+    //Every frame the daemon sends is a type byte, a length and that many bytes of output.
+    private static class FrameOutputStream extends OutputStream
+    {
+        private final DataOutputStream out;
+        private final int type;
+
+        FrameOutputStream(DataOutputStream out, int type)
+        {
+            this.out = out;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[]{(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException
+        {
+            synchronized(out)
+            {
+                out.writeByte(type);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+                out.flush();
+            }
+        }
+    }
+
+    private final Map<String, ParsedBuildFile> buildFiles = new HashMap<>();
+    private final String token = new BigInteger(160, new SecureRandom()).toString(16);
+    private boolean running = true;
+
+    public static void run()
+    {
+        new BuildDaemon().serve();
+    }
+
+    static File getDaemonFile()
+    {
+        return new File(".obgbuild", "daemon");
+    }
+
+    private void serve()
+    {
+        File daemonFile = getDaemonFile();
+
+        try(ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            int port = ((InetSocketAddress)server.getLocalAddress()).getPort();
+            writeDaemonFile(daemonFile, port);
+
+            System.out.println("Build daemon listening on port " + port + ".");
+
+            //One build at a time, the build owns System.out and System.err while it runs.
+            while(running)
+            {
+                try(SocketChannel channel = server.accept())
+                {
+                    handle(channel);
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Lost connection to a client: " + e.getMessage());
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not start the build daemon: " + e.getMessage());
+            throw new BuildFailedException();
+        }
+        finally
+        {
+            daemonFile.delete();
+        }
+
+        System.out.println("Build daemon stopped.");
+    }
+
+    private void writeDaemonFile(File daemonFile, int port) throws IOException
+    {
+        daemonFile.getParentFile().mkdirs();
+        Files.write(daemonFile.toPath(), (port + "\n" + token + "\n").getBytes(StandardCharsets.UTF_8));
+
+        try
+        {
+            Files.setPosixFilePermissions(daemonFile.toPath(), PosixFilePermissions.fromString("rw-------"));
+        }
+        catch(UnsupportedOperationException e)
+        {
+            //Not a POSIX file system, the token is all we have.
+        }
+    }
+
+    private void handle(SocketChannel channel) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+        if(!token.equals(in.readUTF()))
+        {
+            return;
+        }
+
+        String[] args = new String[in.readInt()];
+        for(int i = 0; i < args.length; ++i)
+        {
+            args[i] = in.readUTF();
+        }
+
+        long clientProcess = in.readLong();
+        Map<String, String> environment = new HashMap<>();
+        int variables = in.readInt();
+        for(int i = 0; i < variables; ++i)
+        {
+            String name = in.readUTF();
+            environment.put(name, in.readUTF());
+        }
+
+        int result;
+        if(args.length == 1 && args[0].equals("--daemon-stop"))
+        {
+            running = false;
+            result = 0;
+        }
+        else
+        {
+            result = build(args, environment, "/proc/" + clientProcess + "/fd/", out);
+        }
+
+        synchronized(out)
+        {
+            out.writeByte(EXIT);
+            out.writeInt(result);
+            out.flush();
+        }
+    }
+
+    //The options come from the client's environment, a daemon started from another shell must not build with its
+    //own MAKEFLAGS or remote cache.
+    private int build(String[] args, Map<String, String> environment, String descriptorDirectory, DataOutputStream out)
+    {
+        PrintStream originalOut = System.out;
+        PrintStream originalErr = System.err;
+        PrintStream clientOut = new PrintStream(new FrameOutputStream(out, OUTPUT), true);
+        PrintStream clientErr = new PrintStream(new FrameOutputStream(out, ERROR), true);
+
+        System.setOut(clientOut);
+        System.setErr(clientErr);
+
+        try
+        {
+            BuildOptions options = OBGBuild.parseOptions(args, new BuildOptions(environment, descriptorDirectory));
+            BuildTrace trace = new BuildTrace(options.tracePath);
+            BuildGraph graph = getBuildGraph(options.buildFile, trace);
+
+            //The builder fills in things like the output extension so it gets its own copy.
+            TargetScheduler scheduler = new TargetScheduler(new BuildGraph(graph), options, trace);
+            scheduler.build();
+
+            return 0;
+        }
+        catch(BuildFailedException e)
+        {
+            return 1;
+        }
+        catch(RuntimeException e)
+        {
+            e.printStackTrace();
+            return 1;
+        }
+        finally
+        {
+            clientOut.flush();
+            clientErr.flush();
+            System.setOut(originalOut);
+            System.setErr(originalErr);
+        }
+    }
+
+    //The build file is only parsed again when its contents changed since the last build.
+    private BuildGraph getBuildGraph(String buildFile, BuildTrace trace)
+    {
+        String key = new File(buildFile).getAbsolutePath();
+        String hash = FileHashes.get(buildFile);
+
+        ParsedBuildFile parsed = buildFiles.get(key);
+        if(parsed != null && hash != null && parsed.hash.equals(hash))
+        {
+            return parsed.graph;
+        }
+
+        BuildGraph graph = ParseCache.parse(buildFile, trace);
+        if(hash != null)
+        {
+            buildFiles.put(key, new ParsedBuildFile(hash, graph));
+        }
+
+        return graph;
+    }
+}
@@ -0,0 +1,12 @@
+package oats;
+
+//Thrown once the reason for the failure has been printed, whoever started the build decides what happens next.
+public class BuildFailedException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public BuildFailedException()
+    {
+        super("Build failed.");
+    }
+}
@@ -0,0 +1,100 @@
+package oats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+//Every target of a build file and the DEPENDS: edges between them.
+//A build file without TARGET: blocks is a graph with one unnamed target.
+public class BuildGraph
+{
+    private final List<BuildInfo> targets;
+
+    public BuildGraph(List<BuildInfo> targets)
+    {
+        this.targets = targets;
+    }
+
+    public BuildGraph(BuildGraph other)
+    {
+        targets = new ArrayList<>();
+        for(BuildInfo target : other.targets)
+        {
+            targets.add(new BuildInfo(target));
+        }
+    }
+
+    public List<BuildInfo> getTargets()
+    {
+        return targets;
+    }
+
+    public BuildInfo getTarget(String name)
+    {
+        for(BuildInfo target : targets)
+        {
+            if(target.name.equals(name))
+            {
+                return target;
+            }
+        }
+
+        return null;
+    }
+
+    //Dependencies always come before the targets that need them. Returns null if the graph has a cycle.
+    public List<BuildInfo> getBuildOrder()
+    {
+        Map<String, Integer> state = new HashMap<>();
+        List<BuildInfo> order = new ArrayList<>();
+
+        for(BuildInfo target : targets)
+        {
+            if(!visit(target, state, order))
+            {
+                return null;
+            }
+        }
+
+        return order;
+    }
+
+    public Set<String> getNames()
+    {
+        Set<String> names = new HashSet<>();
+        for(BuildInfo target : targets)
+        {
+            names.add(target.name);
+        }
+
+        return names;
+    }
+
+    //State 1 means the target is on the current path, 2 means it is already in the order.
+    private boolean visit(BuildInfo target, Map<String, Integer> state, List<BuildInfo> order)
+    {
+        Integer current = state.get(target.name);
+        if(current != null)
+        {
+            return current == 2;
+        }
+
+        state.put(target.name, 1);
+
+        for(String dependency : target.dependencies)
+        {
+            BuildInfo other = getTarget(dependency);
+            if(other != null && !visit(other, state, order))
+            {
+                return false;
+            }
+        }
+
+        state.put(target.name, 2);
+        order.add(target);
+        return true;
+    }
+}
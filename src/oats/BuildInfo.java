@@ -5,6 +5,8 @@ import java.util.List;
 
 public class BuildInfo
 {
+    public String name;
+
     public CompilerType compiler;
     public String compilerCommand;
 
@@ -17,6 +19,18 @@ public class BuildInfo
 
     public String outputName;
 
+    public String precompiledHeader;
+
+    public long unityBatchSize;
+
+    public boolean thinArchive;
+    public boolean splitDwarf;
+
+    public String pgoTrain;
+    public long pgoDrift;
+
+    public LinkerType linker;
+
     public BinaryType binaryType;
 
     public BuildType buildType;
@@ -26,24 +40,65 @@ public class BuildInfo
     public List<String> constants;
     public List<String> includePaths;
     public List<String> libraries;
+    public List<String> unityExcludes;
+    public List<String> dependencies;
 
     public BuildInfo()
     {
+        name = "";
         compiler = CompilerType.GCC;
         compilerCommand = "clang";
         langStd = "c17";
         customBuildFlags = "";
         compilerFlags = "";
         linkedFlags = "";
+        linker = LinkerType.DEFAULT;
         binaryType = BinaryType.EXECUTABLE;
         buildType = BuildType.RELEASE;
         outputName = "out";
+        precompiledHeader = "";
+        unityBatchSize = 0;
+        thinArchive = false;
+        splitDwarf = false;
+        pgoTrain = "";
+        pgoDrift = 20;
 
         sourceFiles = new LinkedList<>();
         directories = new LinkedList<>();
         constants = new LinkedList<>();
         includePaths = new LinkedList<>();
         libraries = new LinkedList<>();
+        unityExcludes = new LinkedList<>();
+        dependencies = new LinkedList<>();
+    }
+
+    public BuildInfo(BuildInfo other)
+    {
+        name = other.name;
+        compiler = other.compiler;
+        compilerCommand = other.compilerCommand;
+        langStd = other.langStd;
+        customBuildFlags = other.customBuildFlags;
+        compilerFlags = other.compilerFlags;
+        linkedFlags = other.linkedFlags;
+        linker = other.linker;
+        binaryType = other.binaryType;
+        buildType = other.buildType;
+        outputName = other.outputName;
+        precompiledHeader = other.precompiledHeader;
+        unityBatchSize = other.unityBatchSize;
+        thinArchive = other.thinArchive;
+        splitDwarf = other.splitDwarf;
+        pgoTrain = other.pgoTrain;
+        pgoDrift = other.pgoDrift;
+
+        sourceFiles = new LinkedList<>(other.sourceFiles);
+        directories = new LinkedList<>(other.directories);
+        constants = new LinkedList<>(other.constants);
+        includePaths = new LinkedList<>(other.includePaths);
+        libraries = new LinkedList<>(other.libraries);
+        unityExcludes = new LinkedList<>(other.unityExcludes);
+        dependencies = new LinkedList<>(other.dependencies);
     }
 
     public void addFile(String file)
@@ -70,4 +125,14 @@ public class BuildInfo
     {
         libraries.add(library);
     }
+
+    public void addUnityExclude(String file)
+    {
+        unityExcludes.add(file);
+    }
+
+    public void addDependency(String target)
+    {
+        dependencies.add(target);
+    }
 }
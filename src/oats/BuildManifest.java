@@ -0,0 +1,159 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Remembers what every translation unit looked like the last time it compiled so unchanged ones can be skipped.
+//One line per source: source, content hash, hash of the compile command and the object it produced.
+public class BuildManifest
+{
+    private static final String VERSION = "OBGBUILD_MANIFEST 1";
+
+    public static class Entry
+    {
+        public final String hash;
+        public final String flags;
+        public final String object;
+
+        public Entry(String hash, String flags, String object)
+        {
+            this.hash = hash;
+            this.flags = flags;
+            this.object = object;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile String linkHash = "";
+
+    private BuildManifest(File file)
+    {
+        this.file = file;
+    }
+
+    //A missing or unreadable manifest just means everything gets rebuilt.
+    public static BuildManifest load(File file)
+    {
+        BuildManifest manifest = new BuildManifest(file);
+        if(!file.isFile())
+        {
+            return manifest;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return manifest;
+            }
+
+            manifest.linkHash = reader.readLine();
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields.length == 4)
+                {
+                    manifest.entries.put(fields[0], new Entry(fields[1], fields[2], fields[3]));
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not read build manifest " + file + ", rebuilding everything.");
+            manifest.entries.clear();
+            manifest.linkHash = "";
+        }
+
+        return manifest;
+    }
+
+    public void save()
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+            writer.write(linkHash);
+            writer.newLine();
+
+            for(Map.Entry<String, Entry> e : new TreeMap<>(entries).entrySet())
+            {
+                Entry entry = e.getValue();
+                writer.write(e.getKey() + "\t" + entry.hash + "\t" + entry.flags + "\t" + entry.object);
+                writer.newLine();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write build manifest " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write build manifest " + file + ".");
+        }
+    }
+
+    public boolean isUpToDate(String source, String hash, String flags, String object)
+    {
+        Entry entry = entries.get(source);
+        return entry != null &&
+                hash != null &&
+                entry.hash.equals(hash) &&
+                entry.flags.equals(flags) &&
+                entry.object.equals(object) &&
+                new File(object).isFile();
+    }
+
+    public void put(String source, String hash, String flags, String object)
+    {
+        if(hash == null)
+        {
+            entries.remove(source);
+            return;
+        }
+
+        entries.put(source, new Entry(hash, flags, object));
+    }
+
+    public void remove(String source)
+    {
+        entries.remove(source);
+    }
+
+    //Drops sources that are no longer part of the build.
+    public void retain(Collection<String> sources)
+    {
+        entries.keySet().retainAll(sources);
+    }
+
+    public String getLinkHash()
+    {
+        return linkHash;
+    }
+
+    public void setLinkHash(String linkHash)
+    {
+        this.linkHash = linkHash;
+    }
+}
@@ -0,0 +1,464 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+//History of past builds in .obgbuild/metrics, one block of lines per build that is appended when the build ends.
+//B: time, wall milliseconds, cache hits, cache misses, peak concurrent jobs, whether it succeeded.
+//C: a translation unit that was compiled and how long the compiler took. L: an output that was linked.
+//M: how much memory one job was seen to take.
+public class BuildMetrics
+{
+    private static final String VERSION = "OBGBUILD_METRICS 1";
+
+    //The file is cut back to the newest builds once it holds twice as many.
+    private static final int MAX_BUILDS = 500;
+
+    //A translation unit regressed when it took this much longer than the median of its last samples.
+    private static final int MEDIAN_WINDOW = 10;
+    private static final int MINIMUM_SAMPLES = 3;
+    private static final double REGRESSION_FACTOR = 1.5;
+    private static final long MINIMUM_REGRESSION = 100;
+
+    //Load an earlier build left behind is gone from the load average after this many milliseconds.
+    private static final long LOAD_WINDOW = 5 * 60000;
+
+    public static class Record
+    {
+        public final long time;
+        public final long wallTime;
+        public final int cacheHits;
+        public final int cacheMisses;
+        public final int peakJobs;
+        public final boolean succeeded;
+
+        public long memoryPerJob = 0;
+
+        public final Map<String, Long> compileTimes = new TreeMap<>();
+        public final Map<String, Long> linkTimes = new TreeMap<>();
+
+        public Record(long time, long wallTime, int cacheHits, int cacheMisses, int peakJobs, boolean succeeded)
+        {
+            this.time = time;
+            this.wallTime = wallTime;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.peakJobs = peakJobs;
+            this.succeeded = succeeded;
+        }
+
+        public long getTotalCompileTime()
+        {
+            long total = 0;
+            for(long time : compileTimes.values())
+            {
+                total += time;
+            }
+
+            return total;
+        }
+
+        public long getTotalLinkTime()
+        {
+            long total = 0;
+            for(long time : linkTimes.values())
+            {
+                total += time;
+            }
+
+            return total;
+        }
+    }
+
+    private final File file;
+    private final List<Record> records = new ArrayList<>();
+
+    private BuildMetrics(File file)
+    {
+        this.file = file;
+    }
+
+    public static File getDefaultFile()
+    {
+        return new File(".obgbuild", "metrics");
+    }
+
+    //A missing or unreadable history just starts over.
+    public static BuildMetrics load(File file)
+    {
+        BuildMetrics metrics = new BuildMetrics(file);
+        if(!file.isFile())
+        {
+            return metrics;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return metrics;
+            }
+
+            Record record = null;
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields[0].equals("B") && fields.length == 7)
+                {
+                    record = new Record(Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                            Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                            Integer.parseInt(fields[5]), fields[6].equals("1"));
+                    metrics.records.add(record);
+                }
+                else if(fields[0].equals("C") && fields.length == 3 && record != null)
+                {
+                    record.compileTimes.put(fields[1], Long.parseLong(fields[2]));
+                }
+                else if(fields[0].equals("L") && fields.length == 3 && record != null)
+                {
+                    record.linkTimes.put(fields[1], Long.parseLong(fields[2]));
+                }
+                else if(fields[0].equals("M") && fields.length == 2 && record != null)
+                {
+                    record.memoryPerJob = Long.parseLong(fields[1]);
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            System.err.println("Could not read build metrics " + file + ", starting a new history.");
+            metrics.records.clear();
+        }
+
+        return metrics;
+    }
+
+    //How long every unit took the last time it was compiled in a successful build.
+    public Map<String, Long> getLatestCompileTimes()
+    {
+        Map<String, Long> latest = new HashMap<>();
+
+        for(Record record : records)
+        {
+            if(record.succeeded)
+            {
+                latest.putAll(record.compileTimes);
+            }
+        }
+
+        return latest;
+    }
+
+    //The median of what one job took in the last builds that measured it, 0 when none did.
+    public long getMemoryPerJob()
+    {
+        List<Long> samples = new ArrayList<>();
+
+        for(int i = records.size() - 1; i >= 0 && samples.size() < MEDIAN_WINDOW; --i)
+        {
+            if(records.get(i).memoryPerJob > 0)
+            {
+                samples.add(records.get(i).memoryPerJob);
+            }
+        }
+
+        return samples.isEmpty() ? 0 : median(samples);
+    }
+
+    //How much of the 1-minute load average at now is still the jobs of earlier builds. A build that ran c jobs
+    //on average for w milliseconds added c * (1 - e^(-w/60s)) by the time it ended, which has decayed by
+    //e^(-t/60s) in the t milliseconds since. Builds older than a few minutes don't count anymore.
+    public double getRecentLoad(long now)
+    {
+        double load = 0;
+
+        for(int i = records.size() - 1; i >= 0; --i)
+        {
+            Record record = records.get(i);
+            long since = now - record.time;
+            if(since > LOAD_WINDOW)
+            {
+                break;
+            }
+
+            if(record.wallTime <= 0 || since < 0)
+            {
+                continue;
+            }
+
+            double jobs = Math.min(record.peakJobs, (double)(record.getTotalCompileTime() + record.getTotalLinkTime()) / record.wallTime);
+            load += jobs * (1 - Math.exp(-record.wallTime / 60000.0)) * Math.exp(-since / 60000.0);
+        }
+
+        return load;
+    }
+
+    //Appends the build to the file, which is only rewritten when it has to be cut back.
+    public void add(Record record)
+    {
+        records.add(record);
+
+        if(records.size() > MAX_BUILDS * 2)
+        {
+            records.subList(0, records.size() - MAX_BUILDS).clear();
+            rewrite();
+            return;
+        }
+
+        boolean fresh = !file.isFile();
+        file.getParentFile().mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))
+        {
+            if(fresh)
+            {
+                writer.write(VERSION);
+                writer.newLine();
+            }
+
+            writeRecord(writer, record);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write build metrics " + file + ".");
+        }
+    }
+
+    //Translation units of the given build that took much longer than they usually do, slowest first.
+    public List<String> findRegressions(Record record)
+    {
+        int index = records.indexOf(record);
+        List<String> regressions = new ArrayList<>();
+
+        if(!record.succeeded)
+        {
+            return regressions;
+        }
+
+        List<Map.Entry<String, Long>> units = new ArrayList<>(record.compileTimes.entrySet());
+        units.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        for(Map.Entry<String, Long> unit : units)
+        {
+            String regression = checkRegression(unit.getKey(), unit.getValue(), index);
+            if(regression != null)
+            {
+                regressions.add(regression);
+            }
+        }
+
+        return regressions;
+    }
+
+    public void printReport()
+    {
+        if(records.isEmpty())
+        {
+            System.out.println("No builds recorded in " + file + " yet.");
+            return;
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+        System.out.println("Builds recorded: " + records.size());
+        System.out.println();
+        System.out.println("Recent builds:");
+        System.out.println("  time                     wall    compile       link   cache   jobs");
+
+        for(Record record : records.subList(Math.max(0, records.size() - MEDIAN_WINDOW), records.size()))
+        {
+            int lookups = record.cacheHits + record.cacheMisses;
+            String hitRate = lookups == 0 ? "-" : (record.cacheHits * 100 / lookups) + "%";
+
+            System.out.format("  %s %8.2fs %9.2fs %9.2fs %7s %6d%s%n",
+                    format.format(new Date(record.time)),
+                    record.wallTime / 1000.0,
+                    record.getTotalCompileTime() / 1000.0,
+                    record.getTotalLinkTime() / 1000.0,
+                    hitRate,
+                    record.peakJobs,
+                    record.succeeded ? "" : "  failed");
+        }
+
+        //The newest sample of every unit that was ever compiled.
+        Map<String, Long> latest = new TreeMap<>();
+        Map<String, Integer> latestBuild = new TreeMap<>();
+        for(int i = 0; i < records.size(); ++i)
+        {
+            if(!records.get(i).succeeded)
+            {
+                continue;
+            }
+
+            for(Map.Entry<String, Long> unit : records.get(i).compileTimes.entrySet())
+            {
+                latest.put(unit.getKey(), unit.getValue());
+                latestBuild.put(unit.getKey(), i);
+            }
+        }
+
+        List<Map.Entry<String, Long>> slowest = new ArrayList<>(latest.entrySet());
+        slowest.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        System.out.println();
+        System.out.println("Slowest translation units:");
+
+        for(Map.Entry<String, Long> unit : slowest.subList(0, Math.min(MEDIAN_WINDOW, slowest.size())))
+        {
+            List<Long> samples = getSamples(unit.getKey(), latestBuild.get(unit.getKey()));
+            String median = samples.isEmpty() ? "-" : median(samples) + " ms";
+
+            System.out.format("  %8d ms  median %10s  %s%n", unit.getValue(), median, unit.getKey());
+        }
+
+        //Every unit is judged by its newest compile against the ones before it.
+        List<String> regressions = new ArrayList<>();
+        for(Map.Entry<String, Long> unit : slowest)
+        {
+            String regression = checkRegression(unit.getKey(), unit.getValue(), latestBuild.get(unit.getKey()));
+            if(regression != null)
+            {
+                regressions.add(regression);
+            }
+        }
+
+        System.out.println();
+        if(regressions.isEmpty())
+        {
+            System.out.println("No regressions.");
+        }
+        else
+        {
+            System.out.println("Regressions:");
+            for(String regression : regressions)
+            {
+                System.out.println("  " + regression);
+            }
+        }
+    }
+
+    //Compares one compile of the unit in build number index with the rolling median of the builds before it.
+    private String checkRegression(String unit, long time, int index)
+    {
+        List<Long> samples = getSamples(unit, index);
+        if(samples.size() < MINIMUM_SAMPLES)
+        {
+            return null;
+        }
+
+        long median = median(samples);
+        if(time <= median * REGRESSION_FACTOR || time - median < MINIMUM_REGRESSION)
+        {
+            return null;
+        }
+
+        return String.format("%s took %d ms, the median of its last %d compiles is %d ms.", unit, time, samples.size(), median);
+    }
+
+    //Compile times of the unit in the successful builds before the given one, newest last.
+    private List<Long> getSamples(String unit, int before)
+    {
+        List<Long> samples = new ArrayList<>();
+
+        for(int i = before - 1; i >= 0 && samples.size() < MEDIAN_WINDOW; --i)
+        {
+            Record record = records.get(i);
+            Long time = record.compileTimes.get(unit);
+
+            if(record.succeeded && time != null)
+            {
+                samples.add(time);
+            }
+        }
+
+        Collections.reverse(samples);
+        return samples;
+    }
+
+    private static long median(List<Long> samples)
+    {
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+
+        int middle = sorted.size() / 2;
+        if(sorted.size() % 2 == 1)
+        {
+            return sorted.get(middle);
+        }
+
+        return (sorted.get(middle - 1) + sorted.get(middle)) / 2;
+    }
+
+    private void rewrite()
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+
+            for(Record record : records)
+            {
+                writeRecord(writer, record);
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write build metrics " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write build metrics " + file + ".");
+        }
+    }
+
+    private static void writeRecord(BufferedWriter writer, Record record) throws IOException
+    {
+        writer.write("B\t" + record.time + "\t" + record.wallTime + "\t" + record.cacheHits + "\t" + record.cacheMisses
+                + "\t" + record.peakJobs + "\t" + (record.succeeded ? "1" : "0"));
+        writer.newLine();
+
+        for(Map.Entry<String, Long> unit : record.compileTimes.entrySet())
+        {
+            writer.write("C\t" + unit.getKey() + "\t" + unit.getValue());
+            writer.newLine();
+        }
+
+        for(Map.Entry<String, Long> output : record.linkTimes.entrySet())
+        {
+            writer.write("L\t" + output.getKey() + "\t" + output.getValue());
+            writer.newLine();
+        }
+
+        if(record.memoryPerJob > 0)
+        {
+            writer.write("M\t" + record.memoryPerJob);
+            writer.newLine();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package oats;
+
+import java.util.Map;
+
+//Settings that come from the command line rather than from the build file.
+public class BuildOptions
+{
+    public String buildFile;
+    public boolean useDaemon;
+    public boolean watch;
+
+    public int jobs;
+    public long memoryLimit;
+    public boolean jobServer;
+
+    public boolean useCache;
+    public String cacheDirectory;
+    public long cacheSize;
+
+    public String remoteCacheUrl;
+    public int remoteCacheTimeout;
+
+    public String tracePath;
+
+    //The environment of whoever asked for the build, the client's when the daemon builds for it, and where the
+    //jobserver descriptors that process inherited can be opened.
+    public Map<String, String> environment;
+    public String descriptorDirectory;
+
+    public BuildOptions()
+    {
+        this(System.getenv(), "/proc/self/fd/");
+    }
+
+    public BuildOptions(Map<String, String> environment, String descriptorDirectory)
+    {
+        this.environment = environment;
+        this.descriptorDirectory = descriptorDirectory;
+
+        jobs = Runtime.getRuntime().availableProcessors();
+        useCache = true;
+        cacheDirectory = OSInfo.getCacheDirectory(environment);
+        cacheSize = 5L * 1024 * 1024 * 1024;
+
+        remoteCacheUrl = environment.get("OBGBUILD_REMOTE_CACHE");
+        remoteCacheTimeout = 2000;
+    }
+}
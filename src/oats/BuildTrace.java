@@ -0,0 +1,189 @@
+package oats;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Records what the build spent its time on and writes it as a Chrome trace (chrome://tracing, ui.perfetto.dev).
+//Every span is put on the row of the thread that ran it so stragglers and idle workers show up.
+//Spans are always recorded because the build metrics come from them, the file is only written with a path.
+public class BuildTrace
+{
+    public static class Span
+    {
+        public final String name;
+        public final String category;
+        public final String target;
+        public final long start;
+        public final long end;
+        public final int thread;
+
+        public Span(String name, String category, String target, long start, long end, int thread)
+        {
+            this.name = name;
+            this.category = category;
+            this.target = target;
+            this.start = start;
+            this.end = end;
+            this.thread = thread;
+        }
+    }
+
+    private final String path;
+    private final long origin = System.nanoTime();
+    private final List<Span> spans = new ArrayList<>();
+    private final Map<String, Integer> threads = new LinkedHashMap<>();
+
+    public BuildTrace(String path)
+    {
+        this.path = path;
+    }
+
+    public long begin()
+    {
+        return System.nanoTime();
+    }
+
+    //Closes the span that was opened with begin() on this thread.
+    public void end(String name, String category, String target, long start)
+    {
+        long end = System.nanoTime();
+        String threadName = Thread.currentThread().getName();
+
+        synchronized(this)
+        {
+            Integer thread = threads.get(threadName);
+            if(thread == null)
+            {
+                thread = threads.size() + 1;
+                threads.put(threadName, thread);
+            }
+
+            spans.add(new Span(name, category, target, start, end, thread));
+        }
+    }
+
+    public synchronized List<Span> getSpans(String category)
+    {
+        List<Span> result = new ArrayList<>();
+
+        for(Span span : spans)
+        {
+            if(span.category.equals(category))
+            {
+                result.add(span);
+            }
+        }
+
+        return result;
+    }
+
+    //The most spans of the given categories that were open at the same moment.
+    public synchronized int getPeakConcurrency(String... categories)
+    {
+        List<long[]> edges = new ArrayList<>();
+
+        for(String category : categories)
+        {
+            for(Span span : getSpans(category))
+            {
+                edges.add(new long[] { span.start, 1 });
+                edges.add(new long[] { span.end, -1 });
+            }
+        }
+
+        //Ends sort before starts at the same moment so back to back spans don't count as overlapping.
+        edges.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+
+        int running = 0;
+        int peak = 0;
+        for(long[] edge : edges)
+        {
+            running += (int)edge[1];
+            peak = Math.max(peak, running);
+        }
+
+        return peak;
+    }
+
+    //A trace that can't be written is reported but doesn't fail the build.
+    public synchronized void write()
+    {
+        if(path == null)
+        {
+            return;
+        }
+
+        try(BufferedWriter writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8))
+        {
+            writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            writer.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"tid\":0,\"args\":{\"name\":\"obgbuild\"}}");
+
+            for(Map.Entry<String, Integer> thread : threads.entrySet())
+            {
+                writer.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getValue()
+                        + ",\"args\":{\"name\":" + quote(thread.getKey()) + "}}");
+            }
+
+            for(Span span : spans)
+            {
+                writer.write(",\n{\"name\":" + quote(span.name)
+                        + ",\"cat\":" + quote(span.category)
+                        + ",\"ph\":\"X\""
+                        + ",\"ts\":" + toMicroseconds(span.start - origin)
+                        + ",\"dur\":" + toMicroseconds(span.end - span.start)
+                        + ",\"pid\":1,\"tid\":" + span.thread
+                        + ",\"args\":{\"target\":" + quote(span.target) + "}}");
+            }
+
+            writer.write("\n]}\n");
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write the trace " + path + ": " + e.getMessage());
+            return;
+        }
+
+        System.out.println("Trace written to " + path);
+    }
+
+    private static String toMicroseconds(long nanoseconds)
+    {
+        return String.format("%d.%03d", nanoseconds / 1000, nanoseconds % 1000);
+    }
+
+    private static String quote(String value)
+    {
+        StringBuilder builder = new StringBuilder("\"");
+
+        for(int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            switch(c)
+            {
+                case '"': builder.append("\\\""); break;
+                case '\\': builder.append("\\\\"); break;
+                case '\n': builder.append("\\n"); break;
+                case '\r': builder.append("\\r"); break;
+                case '\t': builder.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                    {
+                        builder.append(String.format("\\u%04x", (int)c));
+                    }
+                    else
+                    {
+                        builder.append(c);
+                    }
+            }
+        }
+
+        return builder.append('"').toString();
+    }
+}
@@ -4,5 +4,8 @@ public enum BuildType
 {
     DEBUG,
     RELEASE,
+    RELEASE_LTO,
+    RELEASE_THINLTO,
+    PGO,
     CUSTOM
 }
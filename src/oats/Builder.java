@@ -1,369 +1,1457 @@
 package oats;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Builder
 {
+    private static final String SHOW_INCLUDES_PREFIX = "Note: including file:";
+
     private final BuildInfo buildInfo;
+    private final BuildOptions options;
+    private final AtomicInteger compiledCount = new AtomicInteger(0);
+
+    private final List<Builder> dependencyBuilders = new ArrayList<>();
+    private volatile boolean changed = false;
+
+    private List<String> params;
+    private List<String> sources;
+    private File objectDirectory;
+    private volatile List<String> objects;
+
+    private BuildManifest manifest;
+    private DependencyIndex dependencies;
+    private Set<String> changedSources;
+    private ObjectCache objectCache;
+    private RemoteCache remoteCache;
+    private BuildTrace trace = new BuildTrace(null);
+    private Map<String, Long> expectedTimes = new HashMap<>();
+    private JobLimiter limiter;
+    private JobServer jobServer;
+    private String compilerVersion;
+    private PrecompiledHeader precompiledHeader;
+    private String precompiledHeaderHash = "";
+    private Set<Path> unityMembers = new HashSet<>();
 
-    public Builder(BuildInfo buildInfo)
+    //BUILD:pgo. The instrumented build that trains the profile is a Builder of its own with instrumented set,
+    //it keeps its state in buildDirectory instead of next to the output.
+    private ProfileGuidedBuild profile;
+    private BuildInfo instrumentedInfo;
+    private boolean instrumented = false;
+    private File buildDirectory;
+    private String profileHash = "";
+
+    public Builder(BuildInfo buildInfo, BuildOptions options)
     {
         this.buildInfo = buildInfo;
+        this.options = options;
+    }
+
+    public BuildInfo getBuildInfo()
+    {
+        return buildInfo;
+    }
+
+    public void addDependency(Builder builder)
+    {
+        dependencyBuilders.add(builder);
+    }
+
+    //Caches are shared by every target of the build so they are handed in rather than created here.
+    public void setCaches(ObjectCache objectCache, RemoteCache remoteCache)
+    {
+        this.objectCache = objectCache;
+        this.remoteCache = remoteCache;
+    }
+
+    public void setTrace(BuildTrace trace)
+    {
+        this.trace = trace;
+    }
+
+    //Compile times of earlier builds, keyed like the build metrics, used to start the longest compiles first.
+    public void setExpectedTimes(Map<String, Long> expectedTimes)
+    {
+        this.expectedTimes = expectedTimes;
+    }
+
+    public void setLimiter(JobLimiter limiter)
+    {
+        this.limiter = limiter;
+    }
+
+    public void setJobServer(JobServer jobServer)
+    {
+        this.jobServer = jobServer;
+    }
+
+    //The headers this target's translation units included, empty when it never got as far as reading them.
+    public Set<String> getHeaders()
+    {
+        if(dependencies == null)
+        {
+            return new HashSet<>();
+        }
+
+        return dependencies.getHeaders();
     }
 
-    public void buildProject()
+    //Whether this build produced anything new, targets linking against it have to relink when it did.
+    public boolean hasChanged()
     {
+        return changed;
+    }
+
+    //Everything that has to happen before the first compile starts. Runs on the calling thread, one target after the other.
+    public void prepare()
+    {
+        if(buildInfo.buildType == BuildType.PGO && profile == null)
+        {
+            if(ProfileGuidedBuild.isSupported(buildInfo.compiler))
+            {
+                instrumentedInfo = new BuildInfo(buildInfo);
+            }
+            else
+            {
+                System.out.println(getTargetPrefix() + "BUILD:pgo isn't supported for " + buildInfo.compiler + ", building a release build.");
+                buildInfo.buildType = BuildType.RELEASE;
+            }
+        }
+
+        if(!isLinkerSupported())
+        {
+            System.out.println(getTargetPrefix() + "LINKER:" + buildInfo.linker.name().toLowerCase() + " can't be used with "
+                    + buildInfo.compiler + " here, linking with the default linker.");
+            buildInfo.linker = LinkerType.DEFAULT;
+        }
+
+        if(isSplitDwarf() && (objectCache != null || remoteCache != null))
+        {
+            System.out.println(getTargetPrefix() + "Split DWARF objects are not cached, SPLIT_DWARF:off uses the object cache again.");
+        }
+
         //Creating it here because I can't in the parser since it doesn't know the binary type.
         buildInfo.outputName = createOutputName(buildInfo.outputName);
         printBuildInfo();
 
-        String params = constructCompilerParams();
-        System.out.println("params: " + params + "\n");
+        if(instrumentedInfo != null)
+        {
+            profile = new ProfileGuidedBuild(buildInfo, getBuildDirectory());
+        }
+
+        long start = trace.begin();
+
+        if(buildInfo.compiler == CompilerType.OTHER)
+        {
+            params = constructParamsOther();
+            trace.end("params", "params", buildInfo.name, start);
+            System.out.println("params: " + CommandLine.join(params) + "\n");
+            return;
+        }
+
+        params = constructCompilerParams();
+        trace.end("params", "params", buildInfo.name, start);
+        System.out.println("params: " + CommandLine.join(params) + "\n");
+
+        sources = collectSources();
+        if(buildInfo.unityBatchSize > 0)
+        {
+            sources = createUnitySources(sources);
+        }
+
+        objectDirectory = getObjectDirectory();
+        objectDirectory.mkdirs();
+
+        //The precompiled header is tracked like one more translation unit.
+        List<String> tracked = new ArrayList<>(sources);
+        if(!buildInfo.precompiledHeader.isEmpty())
+        {
+            precompiledHeader = new PrecompiledHeader(buildInfo, getBuildDirectory(), params);
+            tracked.add(precompiledHeader.stub);
+        }
+
+        manifest = BuildManifest.load(new File(getBuildDirectory(), "manifest"));
+        manifest.retain(tracked);
+        dependencies = DependencyIndex.load(new File(getBuildDirectory(), "dependencies"));
+        dependencies.retain(tracked);
+
+        if(objectCache != null || remoteCache != null)
+        {
+            compilerVersion = getCompilerVersion();
+        }
+
+        changedSources = dependencies.findChangedSources(tracked);
+    }
+
+    //Hands every translation unit to the pool. Completes with the objects, or with null when something failed.
+    //Training a profile needs the outputs of the dependencies, dependenciesLinked tells when they are there.
+    public CompletableFuture<List<String>> compile(PriorityExecutor pool, CompletableFuture<Boolean> dependenciesLinked)
+    {
+        if(buildInfo.compiler == CompilerType.OTHER)
+        {
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        return train(pool, dependenciesLinked).thenCompose(trained ->
+        {
+            if(!trained)
+            {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if(profile != null && !instrumented)
+            {
+                profileHash = profile.getProfileHash();
+
+                try
+                {
+                    profile.install(objectDirectory);
+                }
+                catch(IOException e)
+                {
+                    System.err.println("Could not put the profile next to the objects: " + e.getMessage());
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+
+            return compileUnits(pool);
+        });
+    }
+
+    private CompletableFuture<List<String>> compileUnits(PriorityExecutor pool)
+    {
+        CompletableFuture<Integer> precompiled = CompletableFuture.completedFuture(0);
+        if(precompiledHeader != null)
+        {
+            precompiled = CompletableFuture.supplyAsync(() -> buildPrecompiledHeader(params), pool);
+        }
+
+        return precompiled.thenCompose(result ->
+        {
+            if(result != 0)
+            {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if(precompiledHeader != null)
+            {
+                List<String> withHeader = new ArrayList<>(params);
+                withHeader.addAll(precompiledHeader.constructUseParams());
+                params = withHeader;
+            }
+
+            return compileSources(params, sources, objectDirectory, pool);
+        });
+    }
+
+    //Builds the instrumented target, runs PGO_TRAIN: with it and merges what it recorded, unless the profile
+    //of this configuration is still good. Completes with false when any of it failed.
+    private CompletableFuture<Boolean> train(PriorityExecutor pool, CompletableFuture<Boolean> dependenciesLinked)
+    {
+        if(profile == null || instrumented || !profile.needsTraining(sources))
+        {
+            return CompletableFuture.completedFuture(true);
+        }
+
+        //It writes the real output so the training command finds the binary where the build file says it is.
+        Builder trainee = new Builder(instrumentedInfo, options);
+        trainee.instrumented = true;
+        trainee.profile = profile;
+        trainee.buildDirectory = new File(profile.directory, "instrumented");
+        trainee.dependencyBuilders.addAll(dependencyBuilders);
+        trainee.setCaches(objectCache, remoteCache);
+        trainee.setTrace(trace);
+        trainee.setExpectedTimes(expectedTimes);
+        trainee.setLimiter(limiter);
+        trainee.setJobServer(jobServer);
+
+        System.out.println(getTargetPrefix() + "Building the instrumented " + buildInfo.outputName + " to train the profile.");
+        trainee.prepare();
+
+        return trainee.compile(pool, dependenciesLinked).thenCombineAsync(dependenciesLinked, (objects, linked) ->
+        {
+            try
+            {
+                if(!linked || objects == null)
+                {
+                    return false;
+                }
+
+                //The output holds the optimized build now and this one afterwards, both links have to happen.
+                trainee.manifest.setLinkHash("");
+                manifest.setLinkHash("");
+
+                return trainee.link(objects) == 0 && runTraining(trainee.objectDirectory);
+            }
+            finally
+            {
+                trainee.finish();
+            }
+        }, pool);
+    }
+
+    private boolean runTraining(File instrumentedObjects)
+    {
+        try
+        {
+            profile.clear(instrumentedObjects);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not remove the old profile: " + e.getMessage());
+            return false;
+        }
+
+        System.out.println(getTargetPrefix() + "Training the profile: " + buildInfo.pgoTrain);
+        if(launchCommand(CommandLine.shell(buildInfo.pgoTrain), null, buildInfo.pgoTrain, "train") != 0)
+        {
+            System.out.println(getTargetPrefix() + "The training command failed.");
+            return false;
+        }
+
+        try
+        {
+            profile.collect(instrumentedObjects);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not keep the profile: " + e.getMessage());
+            return false;
+        }
+
+        List<String> merge = profile.getMergeCommand();
+        if(merge != null && launchCommand(merge, null, "merge profiles", "train") != 0)
+        {
+            return false;
+        }
+
+        if(!profile.hasProfile())
+        {
+            System.out.println(getTargetPrefix() + "The training command didn't record a profile, it has to run " + buildInfo.outputName + ".");
+            return false;
+        }
+
+        profile.save(sources);
+        return true;
+    }
+
+    public int link(List<String> objects)
+    {
+        if(objects == null)
+        {
+            return 1;
+        }
+
+        if(buildInfo.compiler == CompilerType.OTHER)
+        {
+            changed = true;
+            return compileOther();
+        }
+
+        if(buildInfo.binaryType == BinaryType.OBJECT_LIB)
+        {
+            return 0;
+        }
+
+        if(buildInfo.binaryType == BinaryType.STATIC_LIB)
+        {
+            return archive(objects);
+        }
+
+        long start = trace.begin();
+        List<String> arguments = constructLinkerParams(objects);
+        trace.end("link params", "params", buildInfo.name, start);
+
+        String linkHash = Hash.ofString(CommandLine.join(getCompilerCommand()) + " " + CommandLine.join(arguments));
+
+        boolean dependencyChanged = false;
+        for(Builder builder : dependencyBuilders)
+        {
+            dependencyChanged |= builder.hasChanged();
+        }
+
+        //Nothing was recompiled and the link line is the same, so the existing output is still correct.
+        if(compiledCount.get() == 0 && !dependencyChanged && linkHash.equals(manifest.getLinkHash()) && new File(buildInfo.outputName).isFile())
+        {
+            System.out.println("Output " + buildInfo.outputName + " is up to date.");
+            return 0;
+        }
+
+        changed = true;
+        List<String> command = createCommand(arguments, new File(getBuildDirectory(), "link.rsp"));
+        int result = launchCommand(command, null, buildInfo.outputName, "link");
+        manifest.setLinkHash(result == 0 ? linkHash : "");
+
+        return result;
+    }
+
+    //Only the members that changed since the last build go into the archive again.
+    private int archive(List<String> objects)
+    {
+        StaticLibrary library = new StaticLibrary(buildInfo, getBuildDirectory());
+
+        List<String> members = new ArrayList<>(objects);
+        if(precompiledHeader != null && precompiledHeader.object != null)
+        {
+            members.add(precompiledHeader.object);
+        }
+
+        List<List<String>> commands;
+        try
+        {
+            commands = library.getCommands(members);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not remove the old " + buildInfo.outputName + ": " + e.getMessage());
+            return 1;
+        }
+
+        if(commands.isEmpty())
+        {
+            System.out.println("Output " + buildInfo.outputName + " is up to date.");
+            return 0;
+        }
+
+        changed = true;
+
+        for(List<String> command : commands)
+        {
+            int result = launchCommand(command, null, buildInfo.outputName, "link");
+            if(result != 0)
+            {
+                library.save(false);
+                return result;
+            }
+        }
+
+        library.save(true);
+        return 0;
+    }
+
+    //Writes back what this build learned, whether it worked or not.
+    public void finish()
+    {
+        if(dependencies != null)
+        {
+            dependencies.save();
+        }
+
+        if(manifest != null)
+        {
+            manifest.save();
+        }
+    }
+
+    public static void compilationMessage(int result)
+    {
+        if(result == 0)
+        {
+            System.out.println();
+            System.out.println("Compilation succeeded.");
+        }
+        else
+        {
+            System.out.println();
+            System.out.println("Compilation failed.");
+            throw new BuildFailedException();
+        }
+    }
+
+    private CompletableFuture<List<String>> compileSources(List<String> params, List<String> sources, File objectDirectory, PriorityExecutor pool)
+    {
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        List<String> objects = new ArrayList<>();
+        for(String source : sources)
+        {
+            objects.add(new File(objectDirectory, getObjectName(source)).getPath());
+        }
+
+        //The objects keep the order of the sources for the link, the compiles are queued longest first.
+        Map<String, Long> estimates = estimateCompileTimes(sources);
+        List<Integer> order = new ArrayList<>();
+        for(int i = 0; i < sources.size(); ++i)
+        {
+            order.add(i);
+        }
+
+        order.sort((a, b) -> Long.compare(estimates.get(sources.get(b)), estimates.get(sources.get(a))));
+
+        List<CompletableFuture<Integer>> results = new ArrayList<>();
+
+        for(int i : order)
+        {
+            String source = sources.get(i);
+            String object = objects.get(i);
+
+            results.add(CompletableFuture.supplyAsync(() ->
+            {
+                //Stop handing out work once something failed, the build is lost anyway.
+                //The skipped source is forgotten because its headers may already be recorded as seen.
+                if(failed.get())
+                {
+                    manifest.remove(source);
+                    return -1;
+                }
+
+                int result = compileSource(params, source, object);
+                if(result != 0)
+                {
+                    failed.set(true);
+                }
+
+                return result;
+            }, pool.withPriority(estimates.get(source))));
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).handle((ignored, error) ->
+        {
+            if(error != null)
+            {
+                System.err.println(error.getMessage());
+                failed.set(true);
+            }
+
+            if(compiledCount.get() > 0)
+            {
+                changed = true;
+            }
+
+            System.out.println(getTargetPrefix() + "Built " + compiledCount.get() + " of " + sources.size() + " translation units.");
+
+            if(failed.get())
+            {
+                return null;
+            }
+
+            this.objects = objects;
+            return objects;
+        });
+    }
+
+    //Milliseconds every source is expected to take. Sources without a recorded compile are guessed from their
+    //size, scaled by how many milliseconds per byte the recorded sources of this target took.
+    private Map<String, Long> estimateCompileTimes(List<String> sources)
+    {
+        Map<String, Long> estimates = new HashMap<>();
+        long knownTime = 0;
+        long knownSize = 0;
+
+        for(String source : sources)
+        {
+            Long time = expectedTimes.get(getTargetPrefix() + source);
+            if(time != null)
+            {
+                estimates.put(source, time);
+                knownTime += time;
+                knownSize += new File(source).length();
+            }
+        }
+
+        double millisecondsPerByte = knownTime > 0 && knownSize > 0 ? (double)knownTime / knownSize : 1.0 / 1024;
+
+        for(String source : sources)
+        {
+            if(!estimates.containsKey(source))
+            {
+                estimates.put(source, (long)(new File(source).length() * millisecondsPerByte));
+            }
+        }
+
+        return estimates;
+    }
+
+    private int compileSource(List<String> params, String source, String object)
+    {
+        List<String> arguments = constructCompileCommand(params, source, object);
+        String hash = FileHashes.get(source);
+        String flags = Hash.ofString(CommandLine.join(getCompilerCommand()) + " " + CommandLine.join(arguments) + precompiledHeaderHash + profileHash);
+
+        if(!changedSources.contains(source) && manifest.isUpToDate(source, hash, flags, object))
+        {
+            return 0;
+        }
+
+        compiledCount.incrementAndGet();
+        Set<String> includes = new HashSet<>();
+
+        //The object names its .dwo file by the absolute path it was compiled to, a cached copy would send the
+        //debugger to whichever build directory compiled it first.
+        String cacheKey = null;
+        if((objectCache != null || remoteCache != null) && !isSplitDwarf())
+        {
+            cacheKey = getCacheKey(params, source, object, includes);
+
+            long start = trace.begin();
+            boolean fetched = cacheKey != null && fetchCachedObject(cacheKey, object);
+            trace.end(source, "cache", buildInfo.name, start);
+
+            if(fetched)
+            {
+                readDependencyFile(object + ".d", includes);
+                dependencies.update(source, filterHeaders(includes, source));
+                manifest.put(source, hash, flags, object);
+                return 0;
+            }
+
+            includes.clear();
+        }
+
+        List<String> command = createCommand(arguments, new File(object + ".rsp"));
+        int result = launchCommand(command, includes, source, "compile");
+        if(result != 0)
+        {
+            manifest.remove(source);
+            dependencies.remove(source);
+            return result;
+        }
+
+        if(cacheKey != null)
+        {
+            storeCachedObject(cacheKey, object);
+        }
+
+        readDependencyFile(object + ".d", includes);
+        dependencies.update(source, filterHeaders(includes, source));
+        manifest.put(source, hash, flags, object);
+
+        return 0;
+    }
+
+    //Rebuilt only when the header, anything it includes or the flags changed. Its hash goes into the
+    //flags of every translation unit so they all follow when it does get rebuilt.
+    private int buildPrecompiledHeader(List<String> params)
+    {
+        try
+        {
+            precompiledHeader.writeStub();
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write " + precompiledHeader.stub + ": " + e.getMessage());
+            return 1;
+        }
+
+        String source = precompiledHeader.stub;
+        List<String> arguments = precompiledHeader.constructCreateParams(params);
+        String hash = FileHashes.get(precompiledHeader.header);
+        String flags = Hash.ofString(CommandLine.join(getCompilerCommand()) + " " + CommandLine.join(arguments));
+
+        if(changedSources.contains(source) || !manifest.isUpToDate(source, hash, flags, precompiledHeader.output))
+        {
+            System.out.println("Precompiling " + buildInfo.precompiledHeader);
+
+            Set<String> includes = new HashSet<>();
+            List<String> command = createCommand(arguments, new File(precompiledHeader.output + ".rsp"));
+            int result = launchCommand(command, includes, buildInfo.precompiledHeader, "compile");
+            if(result != 0)
+            {
+                manifest.remove(source);
+                dependencies.remove(source);
+                return result;
+            }
+
+            readDependencyFile(precompiledHeader.output + ".d", includes);
+            dependencies.update(source, filterHeaders(includes, source));
+            manifest.put(source, hash, flags, precompiledHeader.output);
+        }
+
+        precompiledHeaderHash = FileHashes.get(precompiledHeader.output);
+        if(precompiledHeaderHash == null)
+        {
+            precompiledHeaderHash = "";
+        }
+
+        return 0;
+    }
+
+    //The local cache is asked first, a remote hit is kept locally so the next build doesn't need the network.
+    private boolean fetchCachedObject(String key, String object)
+    {
+        if(objectCache != null && objectCache.fetch(key, object))
+        {
+            return true;
+        }
+
+        if(remoteCache != null && remoteCache.fetch(key, object))
+        {
+            if(objectCache != null)
+            {
+                objectCache.store(key, object);
+            }
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private void storeCachedObject(String key, String object)
+    {
+        if(objectCache != null)
+        {
+            objectCache.store(key, object);
+        }
+
+        if(remoteCache != null)
+        {
+            remoteCache.store(key, object);
+        }
+    }
+
+    //The key covers everything that decides what the object looks like: the preprocessed source,
+    //every flag, the compiler and its exact version. Returns null when preprocessing fails so the
+    //real compile gets to report the error.
+    private String getCacheKey(List<String> params, String source, String object, Set<String> includes)
+    {
+        String preprocessed = object + ".i";
+        List<String> command = createCommand(constructPreprocessCommand(params, source, object, preprocessed), new File(preprocessed + ".rsp"));
+
+        StringBuilder output = new StringBuilder();
+        int result = runCommand(command, output, source, "preprocess");
+        extractIncludes(output.toString(), includes);
+
+        String preprocessedHash = Hash.ofFile(preprocessed);
+        new File(preprocessed).delete();
+
+        if(result != 0 || preprocessedHash == null)
+        {
+            return null;
+        }
+
+        return Hash.ofString(buildInfo.compiler + "\n" +
+                compilerVersion + "\n" +
+                CommandLine.join(params) + "\n" +
+                precompiledHeaderHash + "\n" +
+                profileHash + "\n" +
+                getDebugDirectory(params) + "\n" +
+                preprocessedHash);
+    }
+
+    //Debug info names the directory the object was compiled in and the absolute paths of its sources, a
+    //debug object from another checkout would send the debugger there. Empty when there is no debug info.
+    private String getDebugDirectory(List<String> params)
+    {
+        for(String param : params)
+        {
+            boolean debug = param.equals("/Zi") || param.equals("/Z7") || param.equals("/ZI")
+                    || (param.startsWith("-g") && !param.equals("-g0"));
+
+            if(debug)
+            {
+                return Paths.get("").toAbsolutePath().normalize().toString();
+            }
+        }
+
+        return "";
+    }
+
+    private List<String> constructPreprocessCommand(List<String> params, String source, String object, String preprocessed)
+    {
+        List<String> arguments = new ArrayList<>(params);
+
+        if(isClStyle())
+        {
+            arguments.addAll(CommandLine.of("/showIncludes", "/P", "/Fi" + preprocessed, source));
+            return arguments;
+        }
+
+        arguments.addAll(CommandLine.of("-MMD", "-MF", object + ".d", "-E", source, "-o", preprocessed));
+        return arguments;
+    }
+
+    //cl prints its version banner when run without arguments, everything else understands --version.
+    private String getCompilerVersion()
+    {
+        List<String> command = getCompilerCommand();
+        if(buildInfo.compiler != CompilerType.CL)
+        {
+            command.add("--version");
+        }
+
+        StringBuilder output = new StringBuilder();
+        runCommand(command, output, null, null);
+
+        return output.toString().trim();
+    }
+
+    private List<String> constructCompileCommand(List<String> params, String source, String object)
+    {
+        List<String> arguments = new ArrayList<>(params);
+
+        if(isClStyle())
+        {
+            arguments.addAll(CommandLine.of("/showIncludes", "/c", source, "/Fo" + object));
+            return arguments;
+        }
+
+        arguments.addAll(CommandLine.of("-MMD", "-MF", object + ".d", "-c", source, "-o", object));
+        return arguments;
+    }
+
+    //Package-private for the benchmarks.
+    List<String> constructCompilerParams()
+    {
+        switch(buildInfo.compiler)
+        {
+            case GCC: return constructParamsGcc();
+            case CLANG: return constructParamsClang();
+            case CLANG_CL: return constructParamsClangCl();
+            case CL: return constructParamsCl();
+            case OTHER: return constructParamsOther();
+        }
+
+        return null;
+    }
+
+    private List<String> constructParamsGcc()
+    {
+        List<String> compilerFlags = CommandLine.of("-Wall", "-std=" + buildInfo.langStd);
+
+        if(buildInfo.buildType == BuildType.RELEASE)
+        {
+            compilerFlags.add("-O2");
+        }
+        else if(buildInfo.buildType == BuildType.PGO)
+        {
+            compilerFlags.addAll(getPgoFlags());
+        }
+        else if(isLto())
+        {
+            //gcc has no ThinLTO, its LTO is split into partitions that are optimized in parallel anyway.
+            compilerFlags.addAll(CommandLine.of("-O2", "-flto"));
+        }
+        else if(buildInfo.buildType == BuildType.DEBUG)
+        {
+            compilerFlags.addAll(CommandLine.of("-O0", "-g"));
+            compilerFlags.addAll(getSplitDebugFlags());
+        }
+        else
+        {
+            compilerFlags = CommandLine.split(buildInfo.customBuildFlags);
+        }
+
+        if(buildInfo.binaryType == BinaryType.SHARED_LIB && OSInfo.OS == OSInfo.UNIX)
+        {
+            compilerFlags.add("-fPIC");
+        }
+
+        compilerFlags.addAll(CommandLine.split(buildInfo.compilerFlags));
+        compilerFlags.addAll(getConstants());
+        compilerFlags.addAll(getIncludePaths());
+
+        return compilerFlags;
+    }
+
+    private List<String> constructParamsClang()
+    {
+        List<String> compilerFlags = CommandLine.of("-mno-incremental-linker-compatible", "-Wall", "-std=" + buildInfo.langStd);
+
+        if(buildInfo.buildType == BuildType.RELEASE)
+        {
+            compilerFlags.add("-O2");
+        }
+        else if(buildInfo.buildType == BuildType.PGO)
+        {
+            compilerFlags.addAll(getPgoFlags());
+        }
+        else if(isLto())
+        {
+            compilerFlags.addAll(CommandLine.of("-O2", getClangLtoFlag()));
+        }
+        else if(buildInfo.buildType == BuildType.DEBUG)
+        {
+            compilerFlags.addAll(CommandLine.of("-O0", "-g"));
+            compilerFlags.addAll(getSplitDebugFlags());
+        }
+        else
+        {
+            compilerFlags = CommandLine.split(buildInfo.customBuildFlags);
+        }
+
+        if(buildInfo.binaryType == BinaryType.SHARED_LIB && OSInfo.OS == OSInfo.UNIX)
+        {
+            compilerFlags.add("-fPIC");
+        }
+
+        compilerFlags.addAll(CommandLine.split(buildInfo.compilerFlags));
+        compilerFlags.addAll(getConstants());
+        compilerFlags.addAll(getIncludePaths());
+
+        return compilerFlags;
+    }
+
+    private List<String> constructParamsClangCl()
+    {
+        List<String> compilerFlags = CommandLine.of("/FC", "/W4", "-Xclang", "-std=" + buildInfo.langStd);
+
+        if(buildInfo.buildType == BuildType.RELEASE)
+        {
+            compilerFlags.addAll(CommandLine.of("/O2", "/Oi", "/fp:fast"));
+        }
+        else if(buildInfo.buildType == BuildType.PGO)
+        {
+            compilerFlags.addAll(getPgoFlags());
+        }
+        else if(isLto())
+        {
+            compilerFlags.addAll(CommandLine.of("/O2", "/Oi", "/fp:fast", getClangLtoFlag()));
+        }
+        else if(buildInfo.buildType == BuildType.DEBUG)
+        {
+            compilerFlags.addAll(CommandLine.of("/Od", "/Zi"));
+            compilerFlags.addAll(getSplitDebugFlags());
+        }
+        else
+        {
+            compilerFlags.addAll(CommandLine.split(buildInfo.customBuildFlags));
+        }
+
+        compilerFlags.addAll(CommandLine.split(buildInfo.compilerFlags));
+        compilerFlags.addAll(getConstants());
+        compilerFlags.addAll(getIncludePaths());
+
+        return compilerFlags;
+    }
+
+    private List<String> constructParamsCl()
+    {
+        List<String> compilerFlags = CommandLine.of("/FC", "/W4", "/std:" + buildInfo.langStd);
+
+        if(buildInfo.buildType == BuildType.RELEASE)
+        {
+            compilerFlags.addAll(CommandLine.of("/O2", "/Oi", "/fp:fast"));
+        }
+        else if(isLto())
+        {
+            //cl only has whole program optimization, release-thinlto gets the same.
+            compilerFlags.addAll(CommandLine.of("/O2", "/Oi", "/fp:fast", "/GL"));
+        }
+        else if(buildInfo.buildType == BuildType.DEBUG)
+        {
+            //Translation units compile in parallel, with /Zi they would all write the same vcNNN.pdb. /Z7 keeps the
+            //debug info in every object and the linker puts it together.
+            compilerFlags.addAll(CommandLine.of("/Od", "/Z7"));
+        }
+        else
+        {
+            compilerFlags.addAll(CommandLine.split(buildInfo.customBuildFlags));
+        }
+
+        compilerFlags.addAll(CommandLine.split(buildInfo.compilerFlags));
+        compilerFlags.addAll(getConstants());
+        compilerFlags.addAll(getIncludePaths());
+
+        return compilerFlags;
+    }
+
+    List<String> constructLinkerParams(List<String> objects)
+    {
+        switch(buildInfo.compiler)
+        {
+            case GCC:
+            case CLANG: return constructLinkParamsGcc(objects);
+            case CLANG_CL: return constructLinkParamsClangCl(objects);
+            case CL: return constructLinkParamsCl(objects);
+        }
+
+        return null;
+    }
+
+    private List<String> constructLinkParamsGcc(List<String> objects)
+    {
+        List<String> linkerFlags = getObjectFiles(objects);
+
+        if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+        {
+            linkerFlags.add("-shared");
+        }
+
+        linkerFlags.addAll(CommandLine.of("-o", buildInfo.outputName));
+        linkerFlags.addAll(getLinkerSelection());
+        linkerFlags.addAll(getLtoLinkFlags());
+        linkerFlags.addAll(getPgoLinkFlags());
+        linkerFlags.addAll(getSplitDebugLinkFlags());
+        linkerFlags.addAll(CommandLine.split(buildInfo.linkedFlags));
+        linkerFlags.addAll(getGccLibraries());
+
+        return linkerFlags;
+    }
+
+    private List<String> constructLinkParamsClangCl(List<String> objects)
+    {
+        List<String> linkerFlags = getObjectFiles(objects);
+
+        linkerFlags.addAll(getLinkerSelection());
+        linkerFlags.addAll(getPgoLinkFlags());
+        linkerFlags.addAll(CommandLine.of("/o", buildInfo.outputName, "/link", "/INCREMENTAL:NO", "/OPT:REF"));
+        linkerFlags.addAll(getLtoLinkFlags());
+        linkerFlags.addAll(getSplitDebugLinkFlags());
+        linkerFlags.addAll(CommandLine.split(buildInfo.linkedFlags));
+        linkerFlags.addAll(getLibraries());
+
+        if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+        {
+            linkerFlags.add("/DLL");
+        }
+
+        return linkerFlags;
+    }
+
+    private List<String> constructLinkParamsCl(List<String> objects)
+    {
+        List<String> linkerFlags = getObjectFiles(objects);
+        linkerFlags.addAll(CommandLine.of("/link", "/INCREMENTAL:NO", "/OPT:REF"));
+        linkerFlags.addAll(getLtoLinkFlags());
+        linkerFlags.addAll(getSplitDebugLinkFlags());
+        linkerFlags.addAll(CommandLine.split(buildInfo.linkedFlags));
+        linkerFlags.addAll(getLibraries());
+
+        if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+        {
+            linkerFlags.add("/DLL");
+        }
+
+        linkerFlags.add("/OUT:" + buildInfo.outputName);
+        return linkerFlags;
+    }
+
+    private boolean isLto()
+    {
+        return buildInfo.buildType == BuildType.RELEASE_LTO || buildInfo.buildType == BuildType.RELEASE_THINLTO;
+    }
+
+    private String getClangLtoFlag()
+    {
+        return buildInfo.buildType == BuildType.RELEASE_THINLTO ? "-flto=thin" : "-flto";
+    }
+
+    //The code generation of an LTO link runs on as many threads as the build has jobs. ThinLTO keeps what it
+    //generated per module in .obgbuild/lto-cache, so a relink after a small change only redoes the modules
+    //the change reaches.
+    private List<String> getLtoLinkFlags()
+    {
+        if(!isLto())
+        {
+            return new ArrayList<>();
+        }
+
+        boolean thin = buildInfo.buildType == BuildType.RELEASE_THINLTO;
+        String cache = new File(getBuildDirectory(), "lto-cache").getAbsolutePath();
+        String jobs = String.valueOf(options.jobs);
+
+        switch(buildInfo.compiler)
+        {
+            case GCC: return CommandLine.of("-O2", "-flto=" + jobs);
+
+            //cl can't use more than 8 code generation threads.
+            case CL: return CommandLine.of("/LTCG", "/CGTHREADS:" + Math.min(options.jobs, 8));
+
+            case CLANG_CL:
+            {
+                List<String> result = CommandLine.of("/opt:lldltojobs=" + jobs);
+                if(thin)
+                {
+                    new File(cache).mkdirs();
+                    result.add("/lldltocache:" + cache);
+                }
+
+                return result;
+            }
+
+            case CLANG:
+            {
+                List<String> result = CommandLine.of("-O2", getClangLtoFlag(), "-flto-jobs=" + jobs);
+                boolean lld = isLld();
+
+                if(thin)
+                {
+                    new File(cache).mkdirs();
+
+                    if(OSInfo.MAC)
+                    {
+                        result.add("-Wl,-cache_path_lto," + cache);
+                    }
+                    else if(OSInfo.OS == OSInfo.WINDOWS)
+                    {
+                        result.add("-Wl,/lldltocache:" + cache);
+                    }
+                    else if(lld)
+                    {
+                        result.add("-Wl,--thinlto-cache-dir=" + cache);
+                    }
+                    else
+                    {
+                        result.add("-Wl,-plugin-opt,cache-dir=" + cache);
+                    }
+                }
+
+                return result;
+            }
+        }
+
+        return new ArrayList<>();
+    }
+
+    //Without prepare, like in the benchmarks, there is no profile to build with.
+    private List<String> getPgoFlags()
+    {
+        if(profile == null)
+        {
+            return new ArrayList<>();
+        }
+
+        return instrumented ? profile.getGenerateFlags() : profile.getUseFlags();
+    }
+
+    private List<String> getPgoLinkFlags()
+    {
+        if(profile == null || !instrumented)
+        {
+            return new ArrayList<>();
+        }
+
+        return profile.getGenerateLinkFlags();
+    }
+
+    //LINKER: is handed to the compiler driver, which runs the linker. Without one clang LTO builds pick lld
+    //themselves.
+    private List<String> getLinkerSelection()
+    {
+        switch(buildInfo.compiler)
+        {
+            case GCC:
+            case CLANG:
+            {
+                if(buildInfo.linker != LinkerType.DEFAULT)
+                {
+                    return CommandLine.of("-fuse-ld=" + buildInfo.linker.name().toLowerCase());
+                }
 
-        long start = System.nanoTime();
-        compilationMessage(compile(params));
-        long end = System.nanoTime();
+                return isLld() ? CommandLine.of("-fuse-ld=lld") : new ArrayList<>();
+            }
+
+            //Bitcode objects can only be linked by lld-link.
+            case CLANG_CL: return isLld() ? CommandLine.of("-fuse-ld=lld") : new ArrayList<>();
+        }
 
-        double seconds = (double)(end - start) / 1000000000.0;
-        System.out.format("Time to compile: %.2f seconds%n", seconds);
+        return new ArrayList<>();
     }
 
-    private void compilationMessage(int result)
+    //The system linker on Linux doesn't read bitcode without the gold plugin and link.exe doesn't read it at all,
+    //so clang LTO builds go to lld when LINKER: doesn't say otherwise.
+    private boolean isLld()
     {
-        if(result == 0)
+        if(buildInfo.linker != LinkerType.DEFAULT)
         {
-            System.out.println();
-            System.out.println("Compilation succeeded.");
+            return buildInfo.linker == LinkerType.LLD;
         }
-        else
+
+        switch(buildInfo.compiler)
         {
-            System.out.println();
-            System.out.println("Compilation failed.");
-            System.exit(1);
+            case CLANG: return isLto() && (OSInfo.OS == OSInfo.WINDOWS || (!OSInfo.MAC && StaticLibrary.isOnPath("ld.lld")));
+            case CLANG_CL: return isLto();
         }
+
+        return false;
     }
 
-    private String constructCompilerParams()
+    //cl only links with link.exe and clang-cl only with link.exe or lld-link. bfd, gold and mold only write ELF,
+    //the macOS linker is replaced by nothing but lld.
+    private boolean isLinkerSupported()
     {
-        switch(buildInfo.compiler)
+        switch(buildInfo.linker)
         {
-            case GCC: return constructParamsGcc();
-            case CLANG: return constructParamsClang();
-            case CLANG_CL: return constructParamsClangCl();
-            case CL: return constructParamsCl();
-            case OTHER: return constructParamsOther();
+            case DEFAULT: return true;
+            case LLD: return buildInfo.compiler != CompilerType.CL && buildInfo.compiler != CompilerType.OTHER;
+            case BFD: return (buildInfo.compiler == CompilerType.GCC || buildInfo.compiler == CompilerType.CLANG) && !OSInfo.MAC;
         }
 
-        return null;
+        return (buildInfo.compiler == CompilerType.GCC || buildInfo.compiler == CompilerType.CLANG) && OSInfo.OS == OSInfo.UNIX && !OSInfo.MAC;
+    }
+
+    //Debug info is the bulk of what a debug link has to copy. Split DWARF (SPLIT_DWARF:on) leaves it in a .dwo file
+    //next to every object, a linker that can also writes a .gdb_index so gdb doesn't have to read all of them on
+    //startup. It is off unless asked for since such objects can't be cached.
+    //Windows has the same idea in the PDB: lld-link merges type records by the hashes clang computed while
+    //compiling, link.exe can leave the debug info in the objects.
+    private boolean isSplitDwarf()
+    {
+        return buildInfo.splitDwarf && buildInfo.buildType == BuildType.DEBUG && OSInfo.OS == OSInfo.UNIX && !OSInfo.MAC
+                && (buildInfo.compiler == CompilerType.GCC || buildInfo.compiler == CompilerType.CLANG);
     }
 
-    private String constructParamsGcc()
+    private boolean hasGdbIndex()
     {
-        String compilerFlags = " -Wall -std=" + buildInfo.langStd;
+        return isSplitDwarf() && (buildInfo.linker == LinkerType.GOLD || buildInfo.linker == LinkerType.LLD || buildInfo.linker == LinkerType.MOLD);
+    }
 
-        if(buildInfo.buildType == BuildType.RELEASE)
-        {
-            compilerFlags = compilerFlags + " -O2";
-        }
-        else if(buildInfo.buildType == BuildType.DEBUG)
+    //lld builds the index from the pubnames sections only, the other linkers are faster with them as well.
+    private List<String> getSplitDebugFlags()
+    {
+        if(buildInfo.compiler == CompilerType.CLANG_CL)
         {
-            compilerFlags = compilerFlags + " -O0 -g";
+            return isLld() ? CommandLine.of("-gcodeview-ghash") : new ArrayList<>();
         }
-        else
+
+        if(!isSplitDwarf())
         {
-            compilerFlags = buildInfo.customBuildFlags;
+            return new ArrayList<>();
         }
 
-        if(buildInfo.binaryType == BinaryType.EXECUTABLE)
+        List<String> result = CommandLine.of("-gsplit-dwarf");
+        if(hasGdbIndex())
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -o " + buildInfo.outputName +
-                    " " + buildInfo.linkedFlags +
-                    getGccLibraries();
+            result.add("-ggnu-pubnames");
         }
-        else if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+
+        return result;
+    }
+
+    private List<String> getSplitDebugLinkFlags()
+    {
+        if(buildInfo.buildType != BuildType.DEBUG)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -shared" +
-                    " -o " + buildInfo.outputName +
-                    " " + buildInfo.linkedFlags +
-                    getGccLibraries();
+            return new ArrayList<>();
         }
-        else
+
+        switch(buildInfo.compiler)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -c";
+            case GCC:
+            case CLANG: return hasGdbIndex() ? CommandLine.of("-Wl,--gdb-index") : new ArrayList<>();
+            case CLANG_CL: return CommandLine.of(isLld() ? "/DEBUG:GHASH" : "/DEBUG:FASTLINK");
+            case CL: return CommandLine.of("/DEBUG:FASTLINK");
         }
 
-        return compilerFlags;
+        return new ArrayList<>();
     }
 
-    private String constructParamsClang()
+    private List<String> constructParamsOther()
     {
-        String compilerFlags = " -mno-incremental-linker-compatible -Wall -std=" + buildInfo.langStd;
+        return CommandLine.split(buildInfo.customBuildFlags);
+    }
 
-        if(buildInfo.buildType == BuildType.RELEASE)
-        {
-            compilerFlags = compilerFlags + " -O2";
-        }
-        else if(buildInfo.buildType == BuildType.DEBUG)
-        {
-            compilerFlags = compilerFlags + " -O0 -g";
-        }
-        else
-        {
-            compilerFlags = buildInfo.customBuildFlags;
-        }
+    private List<String> getIncludePaths()
+    {
+        List<String> result = new ArrayList<>();
 
-        if(buildInfo.binaryType == BinaryType.EXECUTABLE)
+        for(String s : buildInfo.includePaths)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -o " + buildInfo.outputName +
-                    " " + buildInfo.linkedFlags +
-                    getGccLibraries();
+            result.add("-I");
+            result.add(s);
         }
-        else if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+
+        return result;
+    }
+
+    private List<String> getObjectFiles(List<String> objects)
+    {
+        List<String> result = new ArrayList<>(objects);
+
+        //cl wants the object that came out of /Yc in the link as well.
+        if(precompiledHeader != null && precompiledHeader.object != null)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -shared" +
-                    " -o " + buildInfo.outputName +
-                    " " + buildInfo.linkedFlags +
-                    getGccLibraries();
+            result.add(precompiledHeader.object);
         }
-        else
+
+        for(Builder builder : dependencyBuilders)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " -c";
+            result.addAll(builder.getLinkInput(buildInfo.compiler));
         }
 
-        return compilerFlags;
+        return result;
     }
 
-    private String constructParamsClangCl()
+    //What a target that depends on this one has to put on its link line.
+    private List<String> getLinkInput(CompilerType linker)
     {
-        String compilerFlags = " /FC /W4 -Xclang -std=" + buildInfo.langStd;
-
-        if(buildInfo.buildType == BuildType.RELEASE)
-        {
-            compilerFlags = compilerFlags + " /O2 /Oi /fp:fast";
-        }
-        else if(buildInfo.buildType == BuildType.DEBUG)
+        if(buildInfo.binaryType == BinaryType.OBJECT_LIB)
         {
-            compilerFlags = compilerFlags + " /Od /Zi";
+            return objects == null ? new ArrayList<>() : getObjectFiles(objects);
         }
-        else
+
+        //An archive doesn't carry what it depends on, whoever links it needs that as well, after it.
+        if(buildInfo.binaryType == BinaryType.STATIC_LIB)
         {
-            compilerFlags = compilerFlags + buildInfo.customBuildFlags;
+            List<String> result = CommandLine.of(new File(buildInfo.outputName).getAbsolutePath());
+            for(Builder builder : dependencyBuilders)
+            {
+                result.addAll(builder.getLinkInput(linker));
+            }
+
+            return result;
         }
 
-        if(buildInfo.binaryType == BinaryType.EXECUTABLE)
+        if(buildInfo.binaryType != BinaryType.SHARED_LIB)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " /o " + buildInfo.outputName +
-                    " /link /INCREMENTAL:NO /OPT:REF" +
-                    " " + buildInfo.linkedFlags +
-                    getLibraries();
+            return new ArrayList<>();
         }
-        else if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+
+        File output = new File(buildInfo.outputName).getAbsoluteFile();
+
+        if(linker == CompilerType.CL || linker == CompilerType.CLANG_CL)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " /o " + buildInfo.outputName +
-                    " /link /INCREMENTAL:NO /OPT:REF" +
-                    " " + buildInfo.linkedFlags +
-                    getLibraries() +
-                    " /DLL";
+            String name = output.getPath();
+            return CommandLine.of(name.substring(0, name.length() - OSInfo.getSharedLibraryExtension().length()) + OSInfo.getStaticLibraryExtension());
         }
-        else
+
+        if(OSInfo.OS == OSInfo.WINDOWS)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    " /c /Fo\"" + buildInfo.outputName + "\"\\" +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories();
+            return CommandLine.of(output.getPath());
         }
 
-        return compilerFlags;
+        String directory = output.getParent();
+        return CommandLine.of("-L" + directory, "-l:" + output.getName(), "-Wl,-rpath," + directory);
     }
 
-    private String constructParamsCl()
+    //Every FILE: entry plus the .c files every DIRECTORY: entry stands for.
+    private List<String> collectSources()
     {
-        String compilerFlags = " /FC /W4 /std:" + buildInfo.langStd;
+        Set<String> sources = new LinkedHashSet<>(buildInfo.sourceFiles);
 
-        if(buildInfo.buildType == BuildType.RELEASE)
+        if(!buildInfo.directories.isEmpty())
         {
-            compilerFlags = compilerFlags + " /O2 /Oi /fp:fast";
+            long start = trace.begin();
+
+            SourceScanner scanner = SourceScanner.load(new File(getBuildDirectory(), "sources"));
+            sources.addAll(scanner.scan(buildInfo.directories));
+            scanner.save();
+
+            trace.end("scan", "scan", buildInfo.name, start);
         }
-        else if(buildInfo.buildType == BuildType.DEBUG)
+
+        return new ArrayList<>(sources);
+    }
+
+    private List<String> createUnitySources(List<String> sources)
+    {
+        UnityBuild unityBuild = new UnityBuild(new File(getBuildDirectory(), "unity"), buildInfo.unityBatchSize);
+
+        try
         {
-            compilerFlags = compilerFlags + " /Od /Zi";
+            List<String> result = unityBuild.createSources(sources, buildInfo.unityExcludes);
+            for(String source : sources)
+            {
+                unityMembers.add(Paths.get(source).toAbsolutePath().normalize());
+            }
+
+            System.out.println("Merged " + sources.size() + " sources into " + result.size() + " translation units.");
+            return result;
         }
-        else
+        catch(IOException e)
         {
-            compilerFlags = compilerFlags + buildInfo.customBuildFlags;
+            System.err.println("Could not write the unity files: " + e.getMessage());
+            compilationMessage(1);
+            return null;
         }
+    }
 
-        if(buildInfo.binaryType == BinaryType.EXECUTABLE)
-        {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " /link /INCREMENTAL:NO /OPT:REF" +
-                    " " + buildInfo.linkedFlags +
-                    getLibraries() +
-                    " /OUT:" + buildInfo.outputName;
-        }
-        else if(buildInfo.binaryType == BinaryType.SHARED_LIB)
+    //Everything OBGBuild keeps between runs lives here, next to the output. Every named target gets its own.
+    private File getBuildDirectory()
+    {
+        if(buildDirectory != null)
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories() +
-                    " /link /INCREMENTAL:NO /OPT:REF" +
-                    " " + buildInfo.linkedFlags +
-                    getLibraries() +
-                    " /DLL" +
-                    " /OUT:" + buildInfo.outputName;;
+            return buildDirectory;
         }
-        else
+
+        File output = new File(buildInfo.outputName).getAbsoluteFile();
+        File directory = new File(output.getParentFile(), ".obgbuild");
+
+        if(buildInfo.name.isEmpty())
         {
-            compilerFlags = compilerFlags +
-                    " " + buildInfo.compilerFlags +
-                    " /c /Fo\"" + buildInfo.outputName + "\"\\" +
-                    getConstants() +
-                    getIncludePaths() +
-                    getSourceFiles() +
-                    getSourceDirectories();
+            return directory;
         }
 
-        return compilerFlags;
-    }
-
-    private String constructParamsOther()
-    {
-        return buildInfo.customBuildFlags;
+        return new File(directory, "target-" + buildInfo.name);
     }
 
-    private String getIncludePaths()
+    private String getTargetPrefix()
     {
-        String result = "";
-
-        for(String s : buildInfo.includePaths)
+        if(buildInfo.name.isEmpty())
         {
-            result = result + " -I " + s;
+            return "";
         }
 
-        return result;
+        return "[" + buildInfo.name + "] ";
     }
 
-    private String getSourceFiles()
+    private File getObjectDirectory()
     {
-        String result = "";
-
-        for(String s : buildInfo.sourceFiles)
+        if(buildInfo.binaryType == BinaryType.OBJECT_LIB)
         {
-            result = result + " " + s;
+            return new File(buildInfo.outputName);
         }
 
-        return result;
+        return new File(getBuildDirectory(), "obj");
     }
 
-    private String getSourceDirectories()
+    //Sources with the same name can live in different directories so the path hash keeps the objects apart.
+    private String getObjectName(String source)
     {
-        String result = "";
-
-        for(String s : buildInfo.directories)
-        {
-            result = result + " " + s + "\\*.c";
-        }
+        File file = new File(source);
+        String name = file.getName();
+        name = name.substring(0, name.length() - 2);
 
-        return result;
+        String hash = Integer.toHexString(file.getAbsolutePath().hashCode());
+        return name + "-" + hash + OSInfo.getObjectFileExtension();
     }
 
-    private String getConstants()
+    private List<String> getConstants()
     {
-        String result = "";
+        List<String> result = new ArrayList<>();
 
         for(String s : buildInfo.constants)
         {
-            result = result + " -D " + s;
+            result.add("-D");
+            result.add(s);
         }
 
         return result;
     }
 
-    private String getGccLibraries()
+    private List<String> getGccLibraries()
     {
-        String result = "";
+        List<String> result = new ArrayList<>();
 
         for(String s : buildInfo.libraries)
         {
             if(s.endsWith(OSInfo.getObjectFileExtension()))
             {
-                result = result + " " + s;
+                result.add(s);
             }
             else
             {
-                result = result + " -l" + s;
+                result.add("-l" + s);
             }
         }
 
         return result;
     }
 
-    private String getLibraries()
+    private List<String> getLibraries()
     {
-        String result = "";
+        List<String> result = new ArrayList<>();
 
         for(String s : buildInfo.libraries)
         {
-            result = result + " " + s + OSInfo.getStaticLibraryExtension();
+            result.add(s + OSInfo.getStaticLibraryExtension());
         }
 
         return result;
@@ -371,16 +1459,53 @@ public class Builder
 
     private void printBuildInfo()
     {
+        if(!buildInfo.name.isEmpty())
+        {
+            System.out.println("target: " + buildInfo.name);
+        }
+
+        for(String s : buildInfo.dependencies)
+        {
+            System.out.println("depends on: " + s);
+        }
+
         System.out.println("compiler: " + buildInfo.compiler);
         System.out.println("compiler command: " + buildInfo.compilerCommand);
         System.out.println("language standard: " + buildInfo.langStd);
         System.out.println("custom build flags: " + buildInfo.customBuildFlags);
         System.out.println("compiler flags: " + buildInfo.compilerFlags);
         System.out.println("linker flags: " + buildInfo.linkedFlags);
+        System.out.println("linker: " + buildInfo.linker);
         System.out.println("binary type: " + buildInfo.binaryType);
         System.out.println("build type: " + buildInfo.buildType);
         System.out.println("output name: " + buildInfo.outputName);
 
+        if(!buildInfo.precompiledHeader.isEmpty())
+        {
+            System.out.println("precompiled header: " + buildInfo.precompiledHeader);
+        }
+
+        if(buildInfo.unityBatchSize > 0)
+        {
+            System.out.println("unity batch size: " + buildInfo.unityBatchSize);
+        }
+
+        if(buildInfo.thinArchive)
+        {
+            System.out.println("thin archive: on");
+        }
+
+        if(buildInfo.splitDwarf)
+        {
+            System.out.println("split dwarf: on");
+        }
+
+        if(buildInfo.buildType == BuildType.PGO)
+        {
+            System.out.println("pgo training command: " + buildInfo.pgoTrain);
+            System.out.println("pgo drift: " + buildInfo.pgoDrift + "%");
+        }
+
         for(String s : buildInfo.sourceFiles)
         {
             System.out.println("file: " + s);
@@ -405,6 +1530,11 @@ public class Builder
         {
             System.out.println("library: " + s);
         }
+
+        for(String s : buildInfo.unityExcludes)
+        {
+            System.out.println("unity exclude: " + s);
+        }
     }
 
     private String createOutputName(String name)
@@ -414,50 +1544,280 @@ public class Builder
             case EXECUTABLE: return name + OSInfo.getExecutableExtension();
             case OBJECT_LIB: return name;
             case SHARED_LIB: return name + OSInfo.getSharedLibraryExtension();
+            case STATIC_LIB: return name + OSInfo.getStaticLibraryExtension();
         }
 
         return null;
     }
 
-    private int compile(String params)
+    //COMPILER:other runs whatever the build file says through the shell, it may rely on one.
+    private int compileOther()
     {
-        String command = buildInfo.compilerCommand + " " + params;
-        return launchCommand(command);
+        String command = buildInfo.compilerCommand + " " + buildInfo.customBuildFlags;
+        return launchCommand(CommandLine.shell(command), null, buildInfo.outputName, "compile");
     }
 
-    private int launchCommand(String command)
+    //COMPILER_COMMAND: may be more than the compiler, like a ccache in front of it.
+    private List<String> getCompilerCommand()
     {
-        if(OSInfo.OS == OSInfo.WINDOWS)
+        return CommandLine.split(buildInfo.compilerCommand);
+    }
+
+    //The compiler with its arguments, moved into responseFile when they get too long for one command line.
+    private List<String> createCommand(List<String> arguments, File responseFile)
+    {
+        try
         {
-            try
+            return CommandLine.withResponseFile(getCompilerCommand(), arguments, responseFile, isClStyle());
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write " + responseFile + ", passing the arguments directly: " + e.getMessage());
+
+            List<String> command = getCompilerCommand();
+            command.addAll(arguments);
+            return command;
+        }
+    }
+
+    private boolean isClStyle()
+    {
+        return buildInfo.compiler == CompilerType.CL || buildInfo.compiler == CompilerType.CLANG_CL;
+    }
+
+    //When includes isn't null the /showIncludes lines are taken out of the output and collected in it.
+    private int launchCommand(List<String> command, Set<String> includes, String span, String category)
+    {
+        //Several compilers run at the same time so their output is collected and printed in one piece.
+        StringBuilder output = new StringBuilder();
+        int result = runCommand(command, output, span, category);
+
+        String text = output.toString();
+        if(includes != null)
+        {
+            text = extractIncludes(text, includes);
+        }
+
+        synchronized(System.out)
+        {
+            System.out.print(text);
+        }
+
+        return result;
+    }
+
+    //The process is traced under span once it got to start, the time spent waiting for a job doesn't count.
+    private int runCommand(List<String> command, StringBuilder output, String span, String category)
+    {
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+
+        if(jobServer != null)
+        {
+            processBuilder.environment().put("MAKEFLAGS", jobServer.getMakeflags());
+        }
+
+        //Waits here when memory or load don't allow another compiler right now, or the jobserver has no token.
+        boolean limited = false;
+        try
+        {
+            if(limiter != null)
             {
-                return new ProcessBuilder("cmd", "/c", command).inheritIO().start().waitFor();
+                limiter.acquire();
+                limited = true;
             }
-            catch(IOException e)
+
+            if(jobServer != null)
             {
-                System.err.println(e.getMessage());
+                jobServer.acquire();
             }
-            catch(InterruptedException e)
+        }
+        catch(InterruptedException e)
+        {
+            //Only what was taken goes back, the jobserver gave nothing when it was interrupted.
+            if(limited)
             {
-                System.err.println(e.getMessage());
+                limiter.release();
             }
+
+            System.err.println(e.getMessage());
+            return -1;
         }
-        else
+
+        long start = trace.begin();
+
+        try
         {
-            try
+            Process process = processBuilder.redirectErrorStream(true).start();
+            output.append(readOutput(process.getInputStream()));
+            return process.waitFor();
+        }
+        catch(IOException e)
+        {
+            System.err.println(e.getMessage());
+        }
+        catch(InterruptedException e)
+        {
+            System.err.println(e.getMessage());
+        }
+        finally
+        {
+            if(span != null)
             {
-                return new ProcessBuilder("bash", command).inheritIO().start().waitFor();
+                trace.end(span, category, buildInfo.name, start);
             }
-            catch(IOException e)
+
+            if(jobServer != null)
             {
-                System.err.println(e.getMessage());
+                jobServer.release();
             }
-            catch(InterruptedException e)
+
+            if(limiter != null)
             {
-                System.err.println(e.getMessage());
+                limiter.release();
             }
         }
 
         return -1;
     }
+
+    private String extractIncludes(String output, Set<String> includes)
+    {
+        StringBuilder result = new StringBuilder();
+
+        for(String line : output.split("\r?\n", -1))
+        {
+            if(line.startsWith(SHOW_INCLUDES_PREFIX))
+            {
+                includes.add(line.substring(SHOW_INCLUDES_PREFIX.length()).trim());
+                continue;
+            }
+
+            if(result.length() > 0)
+            {
+                result.append(System.lineSeparator());
+            }
+
+            result.append(line);
+        }
+
+        return result.toString();
+    }
+
+    //Depfiles look like "object: source header1 header2 \" with backslash line continuations and escaped spaces.
+    private void readDependencyFile(String fileName, Set<String> includes)
+    {
+        File file = new File(fileName);
+        if(!file.isFile())
+        {
+            return;
+        }
+
+        String content;
+        try
+        {
+            content = new String(Files.readAllBytes(file.toPath()), Charset.defaultCharset());
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+
+        content = content.replace("\\\r\n", " ").replace("\\\n", " ");
+
+        int colon = content.indexOf(": ");
+        if(colon == -1)
+        {
+            return;
+        }
+
+        StringBuilder path = new StringBuilder();
+        for(int i = colon + 2; i < content.length(); ++i)
+        {
+            char c = content.charAt(i);
+
+            if(c == '\\' && i + 1 < content.length() && content.charAt(i + 1) == ' ')
+            {
+                path.append(' ');
+                ++i;
+            }
+            else if(c == '$' && i + 1 < content.length() && content.charAt(i + 1) == '$')
+            {
+                path.append('$');
+                ++i;
+            }
+            else if(Character.isWhitespace(c))
+            {
+                if(path.length() > 0)
+                {
+                    includes.add(path.toString());
+                    path.setLength(0);
+                }
+            }
+            else
+            {
+                path.append(c);
+            }
+        }
+
+        if(path.length() > 0)
+        {
+            includes.add(path.toString());
+        }
+    }
+
+    //Only headers inside the project or one of its INCLUDE: paths are tracked, system headers are left alone.
+    //The sources a unity file includes are always tracked, wherever they are, they are what the batch compiles.
+    private List<String> filterHeaders(Set<String> includes, String source)
+    {
+        List<Path> roots = new ArrayList<>();
+        roots.add(Paths.get("").toAbsolutePath().normalize());
+
+        for(String includePath : buildInfo.includePaths)
+        {
+            roots.add(Paths.get(includePath).toAbsolutePath().normalize());
+        }
+
+        Path sourcePath = Paths.get(source).toAbsolutePath().normalize();
+        List<String> headers = new ArrayList<>();
+
+        for(String include : includes)
+        {
+            Path header = Paths.get(include).toAbsolutePath().normalize();
+            if(header.equals(sourcePath))
+            {
+                continue;
+            }
+
+            if(unityMembers.contains(header))
+            {
+                headers.add(header.toString());
+                continue;
+            }
+
+            for(Path root : roots)
+            {
+                if(header.startsWith(root))
+                {
+                    headers.add(header.toString());
+                    break;
+                }
+            }
+        }
+
+        return headers;
+    }
+
+    private String readOutput(InputStream stream) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+
+        int read;
+        while((read = stream.read(buffer)) != -1)
+        {
+            output.write(buffer, 0, read);
+        }
+
+        return new String(output.toByteArray(), Charset.defaultCharset());
+    }
 }
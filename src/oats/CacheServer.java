@@ -0,0 +1,232 @@
+package oats;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Reference server for RemoteCache. Keeps every object as a file named after its key in one directory.
+//Good enough for a team share or for trying the remote cache on a single offline machine.
+//Anyone who can reach it can replace what it serves, so it only listens on the loopback address unless it is
+//explicitly made public. The least recently used objects go once the directory grows past its size limit.
+public class CacheServer
+{
+    //Far more than any object file, a body past it is not something a build uploaded.
+    public static final long MAX_OBJECT_SIZE = 256L * 1024 * 1024;
+
+    private static final byte[] NOT_FOUND = "not found\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CREATED = "created\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BAD_REQUEST = "bad request\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NOT_ALLOWED = "method not allowed\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TOO_LARGE = "too large\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final File directory;
+    private final long maxSize;
+    private final boolean exposed;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong size = new AtomicLong(0);
+
+    public CacheServer(int port, File directory, long maxSize, boolean exposed) throws IOException
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.exposed = exposed;
+        this.server = HttpServer.create(exposed ? new InetSocketAddress(port) : new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    public void start()
+    {
+        directory.mkdirs();
+        for(File file : listObjects())
+        {
+            size.addAndGet(file.length());
+        }
+
+        server.start();
+        System.out.println("Cache server listening on " + (exposed ? "every interface" : "the loopback address") + " port "
+                + getPort() + ", storing up to " + maxSize / (1024 * 1024) + " MB of objects in " + directory + ".");
+    }
+
+    public void stop()
+    {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            String path = exchange.getRequestURI().getPath();
+            String key = path.substring(path.lastIndexOf('/') + 1);
+
+            //Keys are hex hashes, anything else could escape the directory.
+            if(!key.matches("[0-9a-f]{16,128}"))
+            {
+                respond(exchange, 400, BAD_REQUEST);
+                return;
+            }
+
+            File file = new File(directory, key);
+
+            switch(exchange.getRequestMethod())
+            {
+                case "GET":
+                {
+                    if(!file.isFile())
+                    {
+                        respond(exchange, 404, NOT_FOUND);
+                        return;
+                    }
+
+                    byte[] data = Files.readAllBytes(file.toPath());
+                    file.setLastModified(System.currentTimeMillis());
+                    respond(exchange, 200, data);
+                } break;
+
+                case "PUT":
+                {
+                    byte[] data = readBody(exchange);
+                    if(data == null)
+                    {
+                        respond(exchange, 413, TOO_LARGE);
+                        return;
+                    }
+
+                    Path temporary = Files.createTempFile(directory.toPath(), key, ".tmp");
+                    Files.write(temporary, data);
+
+                    long replaced = file.length();
+                    Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    if(size.addAndGet(data.length - replaced) > maxSize)
+                    {
+                        evict();
+                    }
+
+                    respond(exchange, 201, CREATED);
+                } break;
+
+                default: respond(exchange, 405, NOT_ALLOWED);
+            }
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    //Every response carries a small body, the JDK server resets keep-alive connections after empty ones.
+    private void respond(HttpExchange exchange, int code, byte[] body) throws IOException
+    {
+        exchange.sendResponseHeaders(code, body.length);
+        try(OutputStream stream = exchange.getResponseBody())
+        {
+            stream.write(body);
+        }
+    }
+
+    //Null when the body is larger than MAX_OBJECT_SIZE, the rest of it is never read.
+    private byte[] readBody(HttpExchange exchange) throws IOException
+    {
+        String length = exchange.getRequestHeaders().getFirst("Content-Length");
+        if(length != null)
+        {
+            try
+            {
+                if(Long.parseLong(length.trim()) > MAX_OBJECT_SIZE)
+                {
+                    return null;
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                //Falls back to counting what actually arrives.
+            }
+        }
+
+        InputStream stream = exchange.getRequestBody();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+
+        int read;
+        while((read = stream.read(buffer)) != -1)
+        {
+            if(output.size() + read > MAX_OBJECT_SIZE)
+            {
+                return null;
+            }
+
+            output.write(buffer, 0, read);
+        }
+
+        return output.toByteArray();
+    }
+
+    //Drops the least recently used objects until the store is back under 90% of its size limit, like ObjectCache.
+    private synchronized void evict()
+    {
+        if(size.get() <= maxSize)
+        {
+            return;
+        }
+
+        List<File> files = listObjects();
+        long total = 0;
+        for(File file : files)
+        {
+            total += file.length();
+        }
+
+        files.sort(Comparator.comparingLong(File::lastModified));
+        long target = maxSize / 10 * 9;
+
+        for(File file : files)
+        {
+            if(total <= target)
+            {
+                break;
+            }
+
+            long length = file.length();
+            if(file.delete())
+            {
+                total -= length;
+            }
+        }
+
+        size.set(total);
+    }
+
+    private List<File> listObjects()
+    {
+        File[] files = directory.listFiles(file -> file.isFile() && !file.getName().endsWith(".tmp"));
+        return files == null ? new ArrayList<>() : new ArrayList<>(Arrays.asList(files));
+    }
+}
@@ -0,0 +1,198 @@
+package oats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Argument vectors that are started directly, without a shell in between.
+//Flags from the build file are split like a shell would split them, quotes keep spaces inside one argument
+//and \" is a quote inside one.
+//A command line that gets too long for the OS moves its arguments into a response file the compiler reads with @.
+public class CommandLine
+{
+    //CreateProcess takes 32767 characters. Linux takes more, but gcc hands all options to its own
+    //subprocesses in one environment variable that can't pass 128 KB, so it doesn't get to wait that long.
+    private static final int RESPONSE_FILE_THRESHOLD = 30000;
+
+    public static List<String> split(String flags)
+    {
+        List<String> result = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean inArgument = false;
+        char quote = 0;
+
+        for(int i = 0; i < flags.length(); ++i)
+        {
+            char c = flags.charAt(i);
+
+            //A backslash only escapes a double quote, so Windows paths keep theirs.
+            if(c == '\\' && i + 1 < flags.length() && flags.charAt(i + 1) == '"' && quote != '\'')
+            {
+                current.append('"');
+                inArgument = true;
+                ++i;
+            }
+            else if(quote != 0)
+            {
+                if(c == quote)
+                {
+                    quote = 0;
+                }
+                else
+                {
+                    current.append(c);
+                }
+            }
+            else if(c == '"' || c == '\'')
+            {
+                quote = c;
+                inArgument = true;
+            }
+            else if(Character.isWhitespace(c))
+            {
+                if(inArgument)
+                {
+                    result.add(current.toString());
+                    current.setLength(0);
+                    inArgument = false;
+                }
+            }
+            else
+            {
+                current.append(c);
+                inArgument = true;
+            }
+        }
+
+        if(inArgument)
+        {
+            result.add(current.toString());
+        }
+
+        return result;
+    }
+
+    public static List<String> of(String... arguments)
+    {
+        return new ArrayList<>(Arrays.asList(arguments));
+    }
+
+    //One string for printing and hashing, arguments with spaces or quotes are quoted.
+    public static String join(List<String> arguments)
+    {
+        StringBuilder result = new StringBuilder();
+
+        for(String argument : arguments)
+        {
+            if(result.length() > 0)
+            {
+                result.append(' ');
+            }
+
+            result.append(quote(argument, false));
+        }
+
+        return result.toString();
+    }
+
+    //The program followed by its arguments while that is short enough, otherwise by @responseFile holding them.
+    //The program can be more than one word, like a ccache in front of the compiler.
+    //cl and clang-cl read backslashes in response files literally, gcc and clang treat them as escapes.
+    public static List<String> withResponseFile(List<String> program, List<String> arguments, File responseFile, boolean msvcStyle) throws IOException
+    {
+        List<String> result = new ArrayList<>(program);
+
+        int length = 0;
+        for(String argument : arguments)
+        {
+            length += argument.length() + 3;
+        }
+
+        if(length < RESPONSE_FILE_THRESHOLD)
+        {
+            result.addAll(arguments);
+            return result;
+        }
+
+        StringBuilder content = new StringBuilder();
+        for(String argument : arguments)
+        {
+            content.append(quote(argument, msvcStyle)).append('\n');
+        }
+
+        responseFile.getParentFile().mkdirs();
+        Files.write(responseFile.toPath(), content.toString().getBytes(StandardCharsets.UTF_8));
+
+        result.add("@" + responseFile.getPath());
+        return result;
+    }
+
+    //What runs a string through the shell of the platform, for COMPILER:other commands written for one.
+    public static List<String> shell(String command)
+    {
+        if(OSInfo.OS == OSInfo.WINDOWS)
+        {
+            return of("cmd", "/c", command);
+        }
+
+        return of("bash", "-c", command);
+    }
+
+    private static String quote(String argument, boolean msvcStyle)
+    {
+        boolean plain = !argument.isEmpty();
+        for(int i = 0; i < argument.length() && plain; ++i)
+        {
+            char c = argument.charAt(i);
+            plain = !Character.isWhitespace(c) && c != '"' && c != '\'' && (msvcStyle || c != '\\');
+        }
+
+        if(plain)
+        {
+            return argument;
+        }
+
+        StringBuilder result = new StringBuilder("\"");
+        for(int i = 0; i < argument.length(); ++i)
+        {
+            char c = argument.charAt(i);
+
+            if(msvcStyle && c == '\\')
+            {
+                //Backslashes are only special in front of a quote, which includes the closing one.
+                int end = i;
+                while(end < argument.length() && argument.charAt(end) == '\\')
+                {
+                    ++end;
+                }
+
+                int count = end - i;
+                if(end == argument.length() || argument.charAt(end) == '"')
+                {
+                    count *= 2;
+                }
+
+                for(int j = 0; j < count; ++j)
+                {
+                    result.append('\\');
+                }
+
+                i = end - 1;
+                continue;
+            }
+
+            if(c == '"' || c == '\\')
+            {
+                result.append('\\');
+            }
+
+            result.append(c);
+        }
+
+        return result.append('"').toString();
+    }
+}
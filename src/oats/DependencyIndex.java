@@ -0,0 +1,215 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Which headers every translation unit included the last time it compiled, and what those headers looked like.
+//Headers are hashed once per build and every source that depends on a changed header is rebuilt.
+public class DependencyIndex
+{
+    private static final String VERSION = "OBGBUILD_DEPENDENCIES 1";
+
+    private final File file;
+    private final Map<String, List<String>> dependencies = new ConcurrentHashMap<>();
+    private final Map<String, String> headerHashes = new ConcurrentHashMap<>();
+    private final Map<String, String> currentHashes = new ConcurrentHashMap<>();
+
+    private DependencyIndex(File file)
+    {
+        this.file = file;
+    }
+
+    public static DependencyIndex load(File file)
+    {
+        DependencyIndex index = new DependencyIndex(file);
+        if(!file.isFile())
+        {
+            return index;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return index;
+            }
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields[0].equals("S") && fields.length >= 2)
+                {
+                    List<String> headers = new ArrayList<>();
+                    for(int i = 2; i < fields.length; ++i)
+                    {
+                        headers.add(fields[i]);
+                    }
+
+                    index.dependencies.put(fields[1], headers);
+                }
+                else if(fields[0].equals("H") && fields.length == 3)
+                {
+                    index.headerHashes.put(fields[1], fields[2]);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not read dependency index " + file + ", rebuilding everything.");
+            index.dependencies.clear();
+            index.headerHashes.clear();
+        }
+
+        return index;
+    }
+
+    public void save()
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        Set<String> usedHeaders = new HashSet<>();
+        for(List<String> headers : dependencies.values())
+        {
+            usedHeaders.addAll(headers);
+        }
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+
+            for(Map.Entry<String, List<String>> e : new TreeMap<>(dependencies).entrySet())
+            {
+                StringBuilder line = new StringBuilder("S\t").append(e.getKey());
+                for(String header : e.getValue())
+                {
+                    line.append('\t').append(header);
+                }
+
+                writer.write(line.toString());
+                writer.newLine();
+            }
+
+            for(Map.Entry<String, String> e : new TreeMap<>(headerHashes).entrySet())
+            {
+                if(usedHeaders.contains(e.getKey()))
+                {
+                    writer.write("H\t" + e.getKey() + "\t" + e.getValue());
+                    writer.newLine();
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write dependency index " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write dependency index " + file + ".");
+        }
+    }
+
+    //Sources that were never recorded count as changed since nobody knows what they include.
+    public Set<String> findChangedSources(Collection<String> sources)
+    {
+        Map<String, Set<String>> dependents = new HashMap<>();
+        Set<String> changed = new HashSet<>();
+
+        for(String source : sources)
+        {
+            List<String> headers = dependencies.get(source);
+            if(headers == null)
+            {
+                changed.add(source);
+                continue;
+            }
+
+            for(String header : headers)
+            {
+                dependents.computeIfAbsent(header, h -> new HashSet<>()).add(source);
+            }
+        }
+
+        dependents.keySet().parallelStream().forEach(this::getCurrentHash);
+
+        for(Map.Entry<String, Set<String>> e : dependents.entrySet())
+        {
+            String recorded = headerHashes.get(e.getKey());
+            String current = currentHashes.get(e.getKey());
+
+            if(recorded == null || !recorded.equals(current))
+            {
+                changed.addAll(e.getValue());
+            }
+        }
+
+        return changed;
+    }
+
+    public void update(String source, Collection<String> headers)
+    {
+        List<String> sorted = new ArrayList<>(new TreeSet<>(headers));
+
+        for(String header : sorted)
+        {
+            headerHashes.put(header, getCurrentHash(header));
+        }
+
+        dependencies.put(source, sorted);
+    }
+
+    //Every header some translation unit included the last time it compiled.
+    public Set<String> getHeaders()
+    {
+        Set<String> headers = new HashSet<>();
+        for(List<String> included : dependencies.values())
+        {
+            headers.addAll(included);
+        }
+
+        return headers;
+    }
+
+    public void remove(String source)
+    {
+        dependencies.remove(source);
+    }
+
+    public void retain(Collection<String> sources)
+    {
+        dependencies.keySet().retainAll(sources);
+    }
+
+    //A missing header hashes to a sentinel so it still shows up as a change.
+    private String getCurrentHash(String header)
+    {
+        return currentHashes.computeIfAbsent(header, h ->
+        {
+            String hash = FileHashes.get(h);
+            return hash == null ? "missing" : hash;
+        });
+    }
+}
@@ -0,0 +1,33 @@
+package oats;
+
+//Content hashes of files, only recomputed when the size, modification time or file key of the file changes.
+//The states are kept in the FileStateIndex in .obgbuild, so they outlive the JVM and a build daemon and a
+//one-shot build both hash an unchanged file only once.
+public class FileHashes
+{
+    private static FileStateIndex index;
+    private static boolean opened = false;
+
+    //Returns null when the file can't be read, just like Hash.ofFile.
+    public static String get(String fileName)
+    {
+        FileStateIndex index = getIndex();
+        if(index == null)
+        {
+            return Hash.ofFile(fileName);
+        }
+
+        return index.get(fileName);
+    }
+
+    private static synchronized FileStateIndex getIndex()
+    {
+        if(!opened)
+        {
+            index = FileStateIndex.open(FileStateIndex.getDefaultFile());
+            opened = true;
+        }
+
+        return index;
+    }
+}
@@ -0,0 +1,271 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+//The size, modification time, file key and content hash of every file a build hashed, kept in
+//.obgbuild/filestate so the next build only has to stat a file to know it is unchanged.
+//Every path gets an id, its line in .obgbuild/filestate.paths, and the state of path id is a fixed record
+//at HEADER_SIZE + id * RECORD_SIZE in the mapped file. The records are read in place and never parsed, but the
+//path to id table is read into memory when the index is opened, and every lookup still stats the file and
+//normalizes its path.
+//Records carry a checksum over their path and contents, so one a crashed or concurrent build left half written
+//or put in the wrong place is treated as missing and the file is hashed again.
+public class FileStateIndex
+{
+    private static final long MAGIC = 0x4f4247_4653_0001L;
+    private static final int HEADER_SIZE = 16;
+
+    //pathId + 1 (4), unused (4), size (8), modified (8), key (8), SHA-256 (32), checksum (8)
+    private static final int RECORD_SIZE = 72;
+    private static final int HASH_OFFSET = 32;
+    private static final int HASH_SIZE = 32;
+    private static final int CHECKSUM_OFFSET = 64;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final File file;
+    private final FileChannel channel;
+    private final OutputStream paths;
+    private final Map<String, Integer> ids = new HashMap<>();
+
+    private MappedByteBuffer records;
+    private int capacity;
+    private int pathCount = 0;
+
+    private FileStateIndex(File file, FileChannel channel, OutputStream paths)
+    {
+        this.file = file;
+        this.channel = channel;
+        this.paths = paths;
+    }
+
+    public static File getDefaultFile()
+    {
+        return new File(".obgbuild", "filestate");
+    }
+
+    //Opens the index, starting a new one when it is missing or from another version. Null when it can't be
+    //opened at all, the caller then hashes every file.
+    public static FileStateIndex open(File file)
+    {
+        File pathFile = new File(file.getPath() + ".paths");
+        file.getAbsoluteFile().getParentFile().mkdirs();
+
+        try
+        {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            boolean valid = channel.size() >= HEADER_SIZE && pathFile.isFile();
+            if(valid)
+            {
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                valid = header.getLong(0) == MAGIC && header.getInt(8) == RECORD_SIZE;
+            }
+
+            if(!valid)
+            {
+                channel.truncate(0);
+                Files.write(pathFile.toPath(), new byte[0]);
+            }
+
+            FileStateIndex index = new FileStateIndex(file, channel, new FileOutputStream(pathFile, true));
+
+            try(BufferedReader reader = Files.newBufferedReader(pathFile.toPath(), StandardCharsets.UTF_8))
+            {
+                //A path two builds added at the same time keeps the first id, the record of the second is never read.
+                String line;
+                while((line = reader.readLine()) != null)
+                {
+                    index.ids.putIfAbsent(line, index.pathCount++);
+                }
+            }
+
+            index.map(Math.max(INITIAL_CAPACITY, index.pathCount * 2));
+            index.records.putLong(0, MAGIC);
+            index.records.putInt(8, RECORD_SIZE);
+
+            return index;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not open file state index " + file + ", hashing every file: " + e.getMessage());
+            return null;
+        }
+    }
+
+    //The content hash of a file, only read from disk when its size, modification time or file key differ from
+    //what the index holds. Returns null when the file can't be read, just like Hash.ofFile.
+    public String get(String fileName)
+    {
+        Path path = Paths.get(fileName);
+        BasicFileAttributes attributes;
+
+        try
+        {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        //Java has no inode number, the file key holds it together with the device where the OS has one.
+        long key = Objects.hashCode(attributes.fileKey());
+
+        String name = path.toAbsolutePath().normalize().toString();
+
+        synchronized(this)
+        {
+            Integer id = ids.get(name);
+            if(id != null)
+            {
+                String hash = read(id, name, size, modified, key);
+                if(hash != null)
+                {
+                    return hash;
+                }
+            }
+        }
+
+        String hash = Hash.ofFile(fileName);
+        if(hash == null)
+        {
+            return null;
+        }
+
+        //Changes between the stat and reading the file leave a record that doesn't match on the next build,
+        //which only costs hashing it once more.
+        synchronized(this)
+        {
+            try
+            {
+                int id = getId(name);
+                if(id >= 0)
+                {
+                    write(id, name, size, modified, key, hash);
+                }
+            }
+            catch(IOException e)
+            {
+                System.err.println("Could not update file state index " + file + ": " + e.getMessage());
+            }
+        }
+
+        return hash;
+    }
+
+    private String read(int id, String name, long size, long modified, long key)
+    {
+        if(id >= capacity)
+        {
+            return null;
+        }
+
+        int offset = HEADER_SIZE + id * RECORD_SIZE;
+        if(records.getInt(offset) != id + 1 || records.getLong(offset + 8) != size || records.getLong(offset + 16) != modified || records.getLong(offset + 24) != key)
+        {
+            return null;
+        }
+
+        if(records.getLong(offset + CHECKSUM_OFFSET) != checksum(offset, name))
+        {
+            return null;
+        }
+
+        byte[] hash = new byte[HASH_SIZE];
+        for(int i = 0; i < HASH_SIZE; ++i)
+        {
+            hash[i] = records.get(offset + HASH_OFFSET + i);
+        }
+
+        return Hash.toHex(hash);
+    }
+
+    private void write(int id, String name, long size, long modified, long key, String hash) throws IOException
+    {
+        if(id >= capacity)
+        {
+            map(Math.max(capacity * 2, id + 1));
+        }
+
+        int offset = HEADER_SIZE + id * RECORD_SIZE;
+
+        //Invalid while it is being written.
+        records.putInt(offset, 0);
+        records.putLong(offset + 8, size);
+        records.putLong(offset + 16, modified);
+        records.putLong(offset + 24, key);
+
+        for(int i = 0; i < HASH_SIZE; ++i)
+        {
+            records.put(offset + HASH_OFFSET + i, (byte)Integer.parseInt(hash.substring(i * 2, i * 2 + 2), 16));
+        }
+
+        records.putInt(offset, id + 1);
+        records.putLong(offset + CHECKSUM_OFFSET, checksum(offset, name));
+    }
+
+    private int getId(String name) throws IOException
+    {
+        Integer id = ids.get(name);
+        if(id != null)
+        {
+            return id;
+        }
+
+        //Paths with a line break can't be stored, those files are hashed every time.
+        if(name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0)
+        {
+            return -1;
+        }
+
+        paths.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+
+        ids.put(name, pathCount);
+        return pathCount++;
+    }
+
+    //FNV-1a over the path and the first CHECKSUM_OFFSET bytes of the record.
+    private long checksum(int offset, String name)
+    {
+        long result = 0xcbf29ce484222325L;
+
+        for(int i = 0; i < name.length(); ++i)
+        {
+            result = (result ^ name.charAt(i)) * 0x100000001b3L;
+        }
+
+        for(int i = 0; i < CHECKSUM_OFFSET; ++i)
+        {
+            result = (result ^ (records.get(offset + i) & 0xff)) * 0x100000001b3L;
+        }
+
+        return result;
+    }
+
+    //Mapping past the end grows the file, the old mapping stays valid until it is collected.
+    private void map(int capacity) throws IOException
+    {
+        records = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)capacity * RECORD_SIZE);
+        this.capacity = capacity;
+    }
+}
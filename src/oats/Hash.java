@@ -0,0 +1,77 @@
+package oats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class Hash
+{
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public static String ofString(String value)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        return toHex(digest.digest());
+    }
+
+    public static String ofBuffer(ByteBuffer buffer)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(buffer.duplicate());
+        return toHex(digest.digest());
+    }
+
+    //Returns null when the file can't be read, the compiler will report the real problem.
+    public static String ofFile(String fileName)
+    {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+
+        try(InputStream stream = Files.newInputStream(Paths.get(fileName)))
+        {
+            int read;
+            while((read = stream.read(buffer)) != -1)
+            {
+                digest.update(buffer, 0, read);
+            }
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            //Every JVM is required to ship SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes)
+    {
+        char[] result = new char[bytes.length * 2];
+
+        for(int i = 0; i < bytes.length; ++i)
+        {
+            result[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            result[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+
+        return new String(result);
+    }
+}
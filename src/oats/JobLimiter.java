@@ -0,0 +1,205 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+//Limits how many compiler processes run at once, below the number of workers when the machine can't take them.
+//Every quarter second it reads /proc/meminfo and /proc/loadavg and works out how many jobs fit in the memory
+//that is left and on the cores nobody else is using. It shrinks right away and grows one job at a time,
+//and never goes below one job. Without /proc the limit stays at the number of workers.
+public class JobLimiter
+{
+    private static final long SAMPLE_INTERVAL = 250;
+
+    //Used until a build measured what a job really takes.
+    private static final long DEFAULT_MEMORY_PER_JOB = 256L * 1024 * 1024;
+    private static final long MINIMUM_MEMORY_PER_JOB = 64L * 1024 * 1024;
+
+    private final int maximum;
+    private final long memoryLimit;
+    private final long expectedMemoryPerJob;
+
+    private int allowed;
+    private int running = 0;
+    private int lowest;
+
+    private double ownLoad = 0;
+    private long baseline = -1;
+    private long measuredMemoryPerJob = 0;
+
+    private ScheduledExecutorService sampler;
+
+    //memoryLimit is the most memory the jobs together may use, 0 for no limit besides what the machine has.
+    //expectedMemoryPerJob comes from earlier builds, 0 when there were none. recentLoad is what the jobs of the
+    //builds just before this one still add to the load average, so a build right after another one in --watch
+    //or the daemon isn't held back by its own history.
+    public JobLimiter(int maximum, long memoryLimit, long expectedMemoryPerJob, double recentLoad)
+    {
+        this.maximum = maximum;
+        this.memoryLimit = memoryLimit;
+        this.expectedMemoryPerJob = expectedMemoryPerJob > 0 ? expectedMemoryPerJob : DEFAULT_MEMORY_PER_JOB;
+        this.ownLoad = recentLoad;
+
+        allowed = maximum;
+        lowest = maximum;
+    }
+
+    public void start()
+    {
+        if(!new File("/proc/meminfo").isFile())
+        {
+            return;
+        }
+
+        sample();
+
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            Thread thread = new Thread(runnable, "job-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop()
+    {
+        if(sampler != null)
+        {
+            sampler.shutdownNow();
+        }
+    }
+
+    public synchronized void acquire() throws InterruptedException
+    {
+        while(running >= allowed)
+        {
+            wait();
+        }
+
+        ++running;
+    }
+
+    public synchronized void release()
+    {
+        --running;
+        notifyAll();
+    }
+
+    public synchronized int getLowestLimit()
+    {
+        return lowest;
+    }
+
+    //What one job was seen to take in this build, 0 when nothing ran long enough to tell.
+    public synchronized long getMeasuredMemoryPerJob()
+    {
+        return measuredMemoryPerJob;
+    }
+
+    private synchronized void sample()
+    {
+        long total = -1;
+        long available = -1;
+
+        try(BufferedReader reader = Files.newBufferedReader(Paths.get("/proc/meminfo"), StandardCharsets.US_ASCII))
+        {
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                if(line.startsWith("MemTotal:"))
+                {
+                    total = parseKilobytes(line);
+                }
+                else if(line.startsWith("MemAvailable:"))
+                {
+                    available = parseKilobytes(line);
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            return;
+        }
+
+        if(total < 0 || available < 0)
+        {
+            return;
+        }
+
+        //Whatever disappeared since nothing was running is put on the jobs that are running now.
+        if(running == 0 || baseline < 0)
+        {
+            baseline = available;
+        }
+        else if(baseline > available)
+        {
+            measuredMemoryPerJob = Math.max(measuredMemoryPerJob, (baseline - available) / running);
+        }
+
+        long memoryPerJob = Math.max(MINIMUM_MEMORY_PER_JOB, measuredMemoryPerJob > 0 ? measuredMemoryPerJob : expectedMemoryPerJob);
+
+        //The running jobs are counted as available since they give their memory back, a tenth stays free.
+        long budget = available + running * memoryPerJob - total / 10;
+        if(memoryLimit > 0)
+        {
+            budget = Math.min(budget, memoryLimit);
+        }
+
+        int limit = (int)Math.min(maximum, budget / memoryPerJob);
+
+        //The load average counts our own jobs as well, decayed the same way over a minute.
+        //Only what is left over belongs to someone else.
+        double decay = Math.exp(-SAMPLE_INTERVAL / 60000.0);
+        ownLoad = ownLoad * decay + running * (1 - decay);
+
+        double load = readLoad();
+        if(load >= 0)
+        {
+            //More jobs than cores is what was asked for, so only load from elsewhere takes jobs away.
+            int cores = Math.max(maximum, Runtime.getRuntime().availableProcessors());
+            int otherLoad = (int)Math.max(0, load - ownLoad);
+            limit = Math.min(limit, cores - otherLoad);
+        }
+
+        limit = Math.max(1, limit);
+
+        if(limit > allowed)
+        {
+            allowed = allowed + 1;
+            notifyAll();
+        }
+        else
+        {
+            allowed = limit;
+        }
+
+        lowest = Math.min(lowest, allowed);
+    }
+
+    private static double readLoad()
+    {
+        try
+        {
+            String text = new String(Files.readAllBytes(Paths.get("/proc/loadavg")), StandardCharsets.US_ASCII);
+            return Double.parseDouble(text.trim().split("\\s+")[0]);
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    private static long parseKilobytes(String line)
+    {
+        String[] fields = line.trim().split("\\s+");
+        return Long.parseLong(fields[1]) * 1024;
+    }
+}
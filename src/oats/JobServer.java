@@ -0,0 +1,303 @@
+package oats;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+//Shares one concurrency budget with GNU make. Every token in the jobserver pipe allows one more job, and
+//each process also owns one implicit token it never has to ask for. A token is taken before every compiler
+//starts and given back when it ends.
+//As a client it joins the jobserver named in MAKEFLAGS, either a fifo (--jobserver-auth=fifo:path, make 4.4)
+//or an inherited pair of pipe descriptors (--jobserver-auth=R,W or the older --jobserver-fds=R,W).
+//As a server it creates a fifo with jobs - 1 tokens and puts it in the MAKEFLAGS of every child, so nested
+//makes and builds draw from the same budget.
+public class JobServer
+{
+    private final InputStream input;
+    private final OutputStream output;
+    private final RandomAccessFile fifo;
+    private final File serverDirectory;
+    private final String makeflags;
+
+    private final Deque<Integer> tokens = new ArrayDeque<>();
+    private boolean implicitTokenFree = true;
+    private boolean failed = false;
+    private final Thread shutdownHook = new Thread(this::returnTokens);
+
+    private JobServer(InputStream input, OutputStream output, RandomAccessFile fifo, File serverDirectory, String makeflags)
+    {
+        this.input = input;
+        this.output = output;
+        this.fifo = fifo;
+        this.serverDirectory = serverDirectory;
+        this.makeflags = makeflags;
+
+        //Tokens that are never given back are lost for the whole make run.
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    //The jobserver of the make that started this build, or null when there isn't one that can be used.
+    //Inherited descriptors are opened in descriptorDirectory, /proc/<pid>/fd/ of the process that inherited them.
+    public static JobServer fromEnvironment(Map<String, String> environment, String descriptorDirectory)
+    {
+        String makeflags = environment.get("MAKEFLAGS");
+        if(makeflags == null)
+        {
+            return null;
+        }
+
+        //The last one wins, like in make itself.
+        String auth = null;
+        for(String flag : makeflags.split("\\s+"))
+        {
+            if(flag.startsWith("--jobserver-auth="))
+            {
+                auth = flag.substring("--jobserver-auth=".length());
+            }
+            else if(flag.startsWith("--jobserver-fds="))
+            {
+                auth = flag.substring("--jobserver-fds=".length());
+            }
+        }
+
+        if(auth == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            if(auth.startsWith("fifo:"))
+            {
+                RandomAccessFile fifo = new RandomAccessFile(auth.substring("fifo:".length()), "rw");
+                return new JobServer(null, null, fifo, null, makeflags);
+            }
+
+            //Reopening the descriptors through /proc gives blocking ends of the same pipe.
+            String[] fds = auth.split(",");
+            if(fds.length == 2 && new File(descriptorDirectory + fds[0]).exists())
+            {
+                InputStream input = new FileInputStream(descriptorDirectory + Integer.parseInt(fds[0]));
+                OutputStream output = new FileOutputStream(descriptorDirectory + Integer.parseInt(fds[1]));
+                return new JobServer(input, output, null, null, makeflags);
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            System.err.println("Could not join the jobserver " + auth + ": " + e.getMessage());
+            return null;
+        }
+
+        //Make only passes the descriptors to recipes it knows run a make, prefixed with +.
+        System.err.println("The jobserver " + auth + " was not passed to this build, mark the recipe with + to share it.");
+        return null;
+    }
+
+    //A new jobserver for jobs jobs, or null where fifos aren't available.
+    public static JobServer create(int jobs)
+    {
+        if(OSInfo.OS == OSInfo.WINDOWS)
+        {
+            return null;
+        }
+
+        File directory = null;
+
+        try
+        {
+            directory = Files.createTempDirectory("obgbuild-jobserver").toFile();
+            File path = new File(directory, "fifo");
+
+            Process process = new ProcessBuilder("mkfifo", "-m", "600", path.getPath()).inheritIO().start();
+            if(process.waitFor() != 0)
+            {
+                throw new IOException("mkfifo failed");
+            }
+
+            //Opened for reading and writing so it never blocks waiting for the other end.
+            RandomAccessFile fifo = new RandomAccessFile(path, "rw");
+            for(int i = 1; i < jobs; ++i)
+            {
+                fifo.write('+');
+            }
+
+            String makeflags = "-j" + jobs + " --jobserver-auth=fifo:" + path.getPath();
+            return new JobServer(null, null, fifo, directory, makeflags);
+        }
+        catch(IOException | InterruptedException e)
+        {
+            System.err.println("Could not start a jobserver: " + e.getMessage());
+            deleteServerDirectory(directory);
+            return null;
+        }
+    }
+
+    //What children have to find in their environment to share the budget.
+    public String getMakeflags()
+    {
+        return makeflags;
+    }
+
+    //Blocks until one more job may start. Once the jobserver failed the build only has the implicit token left
+    //and runs one job at a time, the budget of the make around it is unknown from then on.
+    public void acquire() throws InterruptedException
+    {
+        synchronized(this)
+        {
+            while(failed && !implicitTokenFree)
+            {
+                wait();
+            }
+
+            if(implicitTokenFree)
+            {
+                implicitTokenFree = false;
+                return;
+            }
+        }
+
+        try
+        {
+            int token = fifo != null ? fifo.read() : input.read();
+            if(token < 0)
+            {
+                throw new IOException("the jobserver closed");
+            }
+
+            synchronized(this)
+            {
+                tokens.push(token);
+            }
+        }
+        catch(IOException e)
+        {
+            synchronized(this)
+            {
+                if(!failed)
+                {
+                    System.err.println("Could not get a token from the jobserver, running one job at a time: " + e.getMessage());
+                    failed = true;
+                }
+
+                while(!implicitTokenFree)
+                {
+                    wait();
+                }
+
+                implicitTokenFree = false;
+            }
+        }
+    }
+
+    public void release()
+    {
+        Integer token;
+
+        synchronized(this)
+        {
+            token = tokens.poll();
+            if(token == null)
+            {
+                implicitTokenFree = true;
+                notifyAll();
+                return;
+            }
+        }
+
+        writeToken(token);
+    }
+
+    //Gives back whatever is still held and removes the fifo this build created.
+    public void close()
+    {
+        returnTokens();
+
+        try
+        {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        }
+        catch(IllegalStateException e)
+        {
+            //Already shutting down, the hook returns the tokens.
+        }
+
+        try
+        {
+            if(fifo != null)
+            {
+                fifo.close();
+            }
+
+            if(input != null)
+            {
+                input.close();
+                output.close();
+            }
+        }
+        catch(IOException e)
+        {
+            //Nothing left to give back.
+        }
+
+        deleteServerDirectory(serverDirectory);
+    }
+
+    private void returnTokens()
+    {
+        Integer token;
+
+        while(true)
+        {
+            synchronized(this)
+            {
+                token = tokens.poll();
+            }
+
+            if(token == null)
+            {
+                return;
+            }
+
+            writeToken(token);
+        }
+    }
+
+    private void writeToken(int token)
+    {
+        try
+        {
+            if(fifo != null)
+            {
+                fifo.write(token);
+            }
+            else
+            {
+                output.write(token);
+                output.flush();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not return a token to the jobserver: " + e.getMessage());
+        }
+    }
+
+    private static void deleteServerDirectory(File directory)
+    {
+        if(directory == null)
+        {
+            return;
+        }
+
+        new File(directory, "fifo").delete();
+        directory.delete();
+    }
+}
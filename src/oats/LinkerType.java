@@ -0,0 +1,10 @@
+package oats;
+
+public enum LinkerType
+{
+    DEFAULT,
+    BFD,
+    GOLD,
+    LLD,
+    MOLD
+}
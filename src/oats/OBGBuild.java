@@ -1,59 +1,216 @@
 package oats;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-
-//TODO: ADD SUPPORT FOR STATIC LIBRARIES.
-//TODO: SUPPORT FOR MULTIPLE DIFFERENT BUILDING OF EXECUTABLES
 
 public class OBGBuild
 {
-    private static String readFile(String fileName)
+    private static int parseNumber(String option, String value)
     {
         try
         {
-            byte[] bytes = Files.readAllBytes(Paths.get(fileName));
-            return new String(bytes, Charset.defaultCharset());
+            int number = Integer.parseInt(value);
+            if(number > 0)
+            {
+                return number;
+            }
+        }
+        catch(NumberFormatException e)
+        {
+            //Falls through to the error below.
+        }
+
+        System.err.println(option + " requires a positive number.");
+        throw new BuildFailedException();
+    }
+
+    static BuildOptions parseOptions(String[] args)
+    {
+        return parseOptions(args, new BuildOptions());
+    }
+
+    static BuildOptions parseOptions(String[] args, BuildOptions options)
+    {
+        for(int i = 0; i < args.length; ++i)
+        {
+            if(args[i].equals("-j") && i + 1 < args.length)
+            {
+                options.jobs = parseNumber("-j", args[++i]);
+            }
+            else if(args[i].startsWith("-j") && args[i].length() > 2)
+            {
+                options.jobs = parseNumber("-j", args[i].substring(2));
+            }
+            else if(args[i].equals("--memory-limit") && i + 1 < args.length)
+            {
+                options.memoryLimit = parseNumber("--memory-limit", args[++i]) * 1024L * 1024L;
+            }
+            else if(args[i].equals("--jobserver"))
+            {
+                options.jobServer = true;
+            }
+            else if(args[i].equals("--no-cache"))
+            {
+                options.useCache = false;
+            }
+            else if(args[i].equals("--cache-size") && i + 1 < args.length)
+            {
+                options.cacheSize = parseNumber("--cache-size", args[++i]) * 1024L * 1024L;
+            }
+            else if(args[i].equals("--remote-cache") && i + 1 < args.length)
+            {
+                options.remoteCacheUrl = args[++i];
+            }
+            else if(args[i].equals("--remote-cache-timeout") && i + 1 < args.length)
+            {
+                options.remoteCacheTimeout = parseNumber("--remote-cache-timeout", args[++i]);
+            }
+            else if(args[i].equals("--trace") && i + 1 < args.length)
+            {
+                options.tracePath = args[++i];
+            }
+            else if(args[i].equals("--connect"))
+            {
+                options.useDaemon = true;
+            }
+            else if(args[i].equals("--watch"))
+            {
+                options.watch = true;
+            }
+            else
+            {
+                options.buildFile = args[i];
+            }
+        }
+
+        return options;
+    }
+
+    private static void printUsage()
+    {
+        System.out.println("obgbuild [-j jobs] [--memory-limit megabytes] [--jobserver] [--no-cache] [--cache-size megabytes] [--remote-cache url] [--remote-cache-timeout milliseconds] [--trace trace.json] [--connect] [--watch] [buildfile]");
+        System.out.println("obgbuild --cache-server port directory [--cache-size megabytes] [--public]");
+        System.out.println("obgbuild --daemon");
+        System.out.println("obgbuild --daemon-stop");
+        System.out.println("obgbuild --stats");
+        System.out.println("COMPILER:gcc/clang/cl/clang-cl");
+        System.out.println("C_VERSION:c89/c99/c11/c17");
+        System.out.println("FILE:example.c");
+        System.out.println("DIRECTORY:example_dir or example_dir/** !example_dir/excluded/**");
+        System.out.println("CONSTANT:EXAMPLE=1");
+        System.out.println("INCLUDE:example_dir");
+        System.out.println("LIBRARY:example_library");
+        System.out.println("OBJECT:example_object_file");
+        System.out.println("TYPE:shared/static/object/executable");
+        System.out.println("THIN_ARCHIVE:on/off");
+        System.out.println("BUILD:release/release-lto/release-thinlto/pgo/debug/custom");
+        System.out.println("PGO_TRAIN:training_command");
+        System.out.println("PGO_DRIFT:percent_of_changed_sources");
+        System.out.println("CUSTOM_BUILD:flags");
+        System.out.println("COMPILER_FLAGS:flags");
+        System.out.println("LINKER_FLAGS:flags");
+        System.out.println("LINKER:bfd/gold/lld/mold/default");
+        System.out.println("SPLIT_DWARF:on/off");
+        System.out.println("OUTPUT:output_name");
+        System.out.println("PRECOMPILED_HEADER:example.h");
+        System.out.println("UNITY:batch_size_in_bytes/off");
+        System.out.println("UNITY_EXCLUDE:example.c");
+        System.out.println("TARGET:target_name");
+        System.out.println("DEPENDS:target_name");
+    }
+
+    private static void runCacheServer(String[] args)
+    {
+        if(args.length < 3)
+        {
+            printUsage();
+            throw new BuildFailedException();
+        }
+
+        long size = new BuildOptions().cacheSize;
+        boolean exposed = false;
+
+        for(int i = 3; i < args.length; ++i)
+        {
+            if(args[i].equals("--cache-size") && i + 1 < args.length)
+            {
+                size = parseNumber("--cache-size", args[++i]) * 1024L * 1024L;
+            }
+            else if(args[i].equals("--public"))
+            {
+                exposed = true;
+            }
+            else
+            {
+                printUsage();
+                throw new BuildFailedException();
+            }
+        }
+
+        try
+        {
+            new CacheServer(parseNumber("--cache-server", args[1]), new File(args[2]), size, exposed).start();
         }
         catch(IOException e)
         {
-            System.err.println("Could not open " + fileName + ".");
-            System.exit(1);
+            System.err.println("Could not start the cache server: " + e.getMessage());
+            throw new BuildFailedException();
         }
+    }
+
+    private static void build(BuildOptions options)
+    {
+        BuildTrace trace = new BuildTrace(options.tracePath);
+        BuildGraph graph = ParseCache.parse(options.buildFile, trace);
 
-        return null;
+        TargetScheduler scheduler = new TargetScheduler(graph, options, trace);
+        scheduler.build();
     }
 
     public static void main(String[] args)
     {
-        if(args.length < 1)
-        {
-            System.out.println("obgbuild [buildfile]");
-            System.out.println("COMPILER:gcc/clang/cl/clang-cl");
-            System.out.println("C_VERSION:c89/c99/c11/c17");
-            System.out.println("FILE:example.c");
-            System.out.println("DIRECTORY:example_dir");
-            System.out.println("CONSTANT:EXAMPLE=1");
-            System.out.println("INCLUDE:example_dir");
-            System.out.println("LIBRARY:example_library");
-            System.out.println("OBJECT:example_object_file");
-            System.out.println("TYPE:shared/object/executable");
-            System.out.println("BUILD:release/debug/custom");
-            System.out.println("CUSTOM_BUILD:flags");
-            System.out.println("COMPILER_FLAGS:flags");
-            System.out.println("LINKER_FLAGS:flags");
-            System.out.println("OUTPUT:output_name");
-            System.exit(1);
-        }
+        try
+        {
+            if(args.length > 0)
+            {
+                switch(args[0])
+                {
+                    case "--cache-server": runCacheServer(args); return;
+                    case "--daemon": BuildDaemon.run(); return;
+                    case "--daemon-stop": System.exit(BuildClient.stop()); return;
+                    case "--stats": BuildMetrics.load(BuildMetrics.getDefaultFile()).printReport(); return;
+                }
+            }
+
+            BuildOptions options = parseOptions(args);
+            if(options.buildFile == null)
+            {
+                printUsage();
+                System.exit(1);
+            }
 
-        String buildFile = readFile(args[0]);
+            if(options.watch)
+            {
+                new Watcher(options).run();
+                return;
+            }
 
-        Parser parser = new Parser(buildFile);
-        BuildInfo buildInfo = parser.parseFile();
+            if(options.useDaemon)
+            {
+                int result = BuildClient.build(args);
+                if(result != BuildClient.NO_DAEMON)
+                {
+                    System.exit(result);
+                }
 
-        Builder builder = new Builder(buildInfo);
-        builder.buildProject();
+                System.out.println("No build daemon is running in this directory, building locally.");
+            }
+
+            build(options);
+        }
+        catch(BuildFailedException e)
+        {
+            System.exit(1);
+        }
     }
 }
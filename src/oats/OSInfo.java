@@ -1,11 +1,15 @@
 package oats;
 
+import java.io.File;
+import java.util.Map;
+
 public class OSInfo
 {
     public static final int WINDOWS = 1;
     public static final int UNIX = 2;
 
     public static final int OS;
+    public static final boolean MAC = System.getProperty("os.name").toLowerCase().startsWith("mac");
 
     static
     {
@@ -61,6 +65,35 @@ public class OSInfo
         return ".o";
     }
 
+    //OBGBUILD_CACHE_DIR wins, otherwise the usual per user cache location of the platform.
+    public static String getCacheDirectory(Map<String, String> environment)
+    {
+        String directory = environment.get("OBGBUILD_CACHE_DIR");
+        if(directory != null && !directory.isEmpty())
+        {
+            return directory;
+        }
+
+        if(OS == WINDOWS)
+        {
+            String localAppData = environment.get("LOCALAPPDATA");
+            if(localAppData != null && !localAppData.isEmpty())
+            {
+                return localAppData + File.separator + "obgbuild";
+            }
+        }
+        else
+        {
+            String cacheHome = environment.get("XDG_CACHE_HOME");
+            if(cacheHome != null && !cacheHome.isEmpty())
+            {
+                return cacheHome + File.separator + "obgbuild";
+            }
+        }
+
+        return System.getProperty("user.home") + File.separator + ".cache" + File.separator + "obgbuild";
+    }
+
     public static int lineBreakCount()
     {
         if(OS == WINDOWS)
@@ -0,0 +1,155 @@
+package oats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Content addressed store of compiled objects shared by every build of the user.
+//Entries are touched on every hit so their modification time doubles as the last access time for eviction.
+public class ObjectCache
+{
+    private final File directory;
+    private final long maxSize;
+
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+    private volatile boolean stored = false;
+
+    public ObjectCache(File directory, long maxSize)
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    public boolean fetch(String key, String object)
+    {
+        File entry = getEntry(key);
+        if(!entry.isFile())
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            copy(entry, new File(object));
+        }
+        catch(IOException e)
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    public void store(String key, String object)
+    {
+        File entry = getEntry(key);
+
+        try
+        {
+            copy(new File(object), entry);
+            stored = true;
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not store " + object + " in the object cache: " + e.getMessage());
+        }
+    }
+
+    //Drops the least recently used entries until the cache is back under 90% of its size limit.
+    public void evict()
+    {
+        if(!stored)
+        {
+            return;
+        }
+
+        File[] buckets = directory.listFiles(File::isDirectory);
+        if(buckets == null)
+        {
+            return;
+        }
+
+        List<File> entries = new ArrayList<>();
+        long size = 0;
+
+        for(File bucket : buckets)
+        {
+            File[] files = bucket.listFiles(File::isFile);
+            if(files == null)
+            {
+                continue;
+            }
+
+            for(File file : files)
+            {
+                entries.add(file);
+                size += file.length();
+            }
+        }
+
+        if(size <= maxSize)
+        {
+            return;
+        }
+
+        entries.sort(Comparator.comparingLong(File::lastModified));
+        long target = maxSize / 10 * 9;
+
+        for(File entry : entries)
+        {
+            if(size <= target)
+            {
+                break;
+            }
+
+            long length = entry.length();
+            if(entry.delete())
+            {
+                size -= length;
+            }
+        }
+    }
+
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    private File getEntry(String key)
+    {
+        return new File(new File(directory, key.substring(0, 2)), key.substring(2));
+    }
+
+    //Copies through a temporary file so a concurrent reader never sees half an object.
+    private void copy(File from, File to) throws IOException
+    {
+        to.getParentFile().mkdirs();
+        Path temporary = Files.createTempFile(to.getParentFile().toPath(), to.getName(), ".tmp");
+
+        try
+        {
+            Files.copy(from.toPath(), temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
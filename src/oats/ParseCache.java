@@ -0,0 +1,284 @@
+package oats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+//Keeps the parsed targets of a build file in .obgbuild/parse-<name>, keyed by the hash of the build file, so an
+//unchanged build file is read back in one go instead of being parsed. Its paths are still checked so a
+//file that disappeared is reported with the line that names it, by parsing it again.
+public class ParseCache
+{
+    private static final String VERSION = "OBGBUILD_PARSE 5";
+
+    public static BuildGraph parse(String buildFile, BuildTrace trace)
+    {
+        File file = getCacheFile(buildFile);
+        String hash = FileHashes.get(buildFile);
+
+        long start = trace.begin();
+        BuildGraph graph = hash != null ? load(file, hash) : null;
+        if(graph != null && pathsExist(graph))
+        {
+            trace.end("cached parse " + buildFile, "parse", "", start);
+            return graph;
+        }
+
+        start = trace.begin();
+        ByteBuffer bytes = read(buildFile);
+        CharBuffer source = Charset.defaultCharset().decode(bytes.duplicate());
+        trace.end("read " + buildFile, "read", "", start);
+
+        start = trace.begin();
+        graph = new Parser(source).parseFile();
+        trace.end("parse " + buildFile, "parse", "", start);
+
+        //Keyed by what was parsed, not by what the file holds by now.
+        save(file, Hash.ofBuffer(bytes), graph);
+        return graph;
+    }
+
+    private static File getCacheFile(String buildFile)
+    {
+        String name = Paths.get(buildFile).toAbsolutePath().normalize().toString();
+        return new File(".obgbuild", "parse-" + Hash.ofString(name).substring(0, 16));
+    }
+
+    //The whole build file mapped into memory, the parser reads it without another copy besides decoding.
+    //Windows doesn't let an editor save a file while a mapping of it is alive, and a daemon would keep it
+    //alive until the next collection, so there it is read instead.
+    private static ByteBuffer read(String fileName)
+    {
+        try(FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ))
+        {
+            if(OSInfo.OS == OSInfo.WINDOWS)
+            {
+                return ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+            }
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not open " + fileName + ".");
+            throw new BuildFailedException();
+        }
+    }
+
+    private static boolean pathsExist(BuildGraph graph)
+    {
+        List<Path> files = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+
+        for(BuildInfo target : graph.getTargets())
+        {
+            for(String name : target.sourceFiles)
+            {
+                files.add(Paths.get(name));
+            }
+
+            for(String name : target.unityExcludes)
+            {
+                files.add(Paths.get(name));
+            }
+
+            if(!target.precompiledHeader.isEmpty())
+            {
+                files.add(Paths.get(target.precompiledHeader));
+            }
+
+            for(String name : target.includePaths)
+            {
+                directories.add(Paths.get(name));
+            }
+
+            for(String entry : target.directories)
+            {
+                for(String root : SourceScanner.getRoots(entry))
+                {
+                    directories.add(Paths.get(root));
+                }
+            }
+        }
+
+        return files.parallelStream().allMatch(Files::isRegularFile) && directories.parallelStream().allMatch(Files::isDirectory);
+    }
+
+    //A missing, outdated or unreadable cache is just parsed again.
+    private static BuildGraph load(File file, String hash)
+    {
+        if(!file.isFile())
+        {
+            return null;
+        }
+
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath()))))
+        {
+            if(!VERSION.equals(input.readUTF()) || !hash.equals(input.readUTF()))
+            {
+                return null;
+            }
+
+            int count = input.readInt();
+            List<BuildInfo> targets = new ArrayList<>();
+            for(int i = 0; i < count; ++i)
+            {
+                targets.add(readTarget(input));
+            }
+
+            return new BuildGraph(targets);
+        }
+        catch(IOException | IllegalArgumentException | NegativeArraySizeException e)
+        {
+            return null;
+        }
+    }
+
+    private static void save(File file, String hash, BuildGraph graph)
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary.toPath()))))
+        {
+            output.writeUTF(VERSION);
+            output.writeUTF(hash);
+            output.writeInt(graph.getTargets().size());
+
+            for(BuildInfo target : graph.getTargets())
+            {
+                writeTarget(output, target);
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write parse cache " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write parse cache " + file + ".");
+        }
+    }
+
+    private static BuildInfo readTarget(DataInputStream input) throws IOException
+    {
+        BuildInfo target = new BuildInfo();
+
+        target.name = readString(input);
+        target.compiler = CompilerType.valueOf(readString(input));
+        target.compilerCommand = readString(input);
+        target.langStd = readString(input);
+        target.customBuildFlags = readString(input);
+        target.compilerFlags = readString(input);
+        target.linkedFlags = readString(input);
+        target.outputName = readString(input);
+        target.precompiledHeader = readString(input);
+        target.unityBatchSize = input.readLong();
+        target.thinArchive = input.readBoolean();
+        target.splitDwarf = input.readBoolean();
+        target.pgoTrain = readString(input);
+        target.pgoDrift = input.readLong();
+        target.linker = LinkerType.valueOf(readString(input));
+        target.binaryType = BinaryType.valueOf(readString(input));
+        target.buildType = BuildType.valueOf(readString(input));
+
+        target.sourceFiles = readList(input);
+        target.directories = readList(input);
+        target.constants = readList(input);
+        target.includePaths = readList(input);
+        target.libraries = readList(input);
+        target.unityExcludes = readList(input);
+        target.dependencies = readList(input);
+
+        return target;
+    }
+
+    private static void writeTarget(DataOutputStream output, BuildInfo target) throws IOException
+    {
+        writeString(output, target.name);
+        writeString(output, target.compiler.name());
+        writeString(output, target.compilerCommand);
+        writeString(output, target.langStd);
+        writeString(output, target.customBuildFlags);
+        writeString(output, target.compilerFlags);
+        writeString(output, target.linkedFlags);
+        writeString(output, target.outputName);
+        writeString(output, target.precompiledHeader);
+        output.writeLong(target.unityBatchSize);
+        output.writeBoolean(target.thinArchive);
+        output.writeBoolean(target.splitDwarf);
+        writeString(output, target.pgoTrain);
+        output.writeLong(target.pgoDrift);
+        writeString(output, target.linker.name());
+        writeString(output, target.binaryType.name());
+        writeString(output, target.buildType.name());
+
+        writeList(output, target.sourceFiles);
+        writeList(output, target.directories);
+        writeList(output, target.constants);
+        writeList(output, target.includePaths);
+        writeList(output, target.libraries);
+        writeList(output, target.unityExcludes);
+        writeList(output, target.dependencies);
+    }
+
+    private static List<String> readList(DataInputStream input) throws IOException
+    {
+        int count = input.readInt();
+        List<String> result = new LinkedList<>();
+
+        for(int i = 0; i < count; ++i)
+        {
+            result.add(readString(input));
+        }
+
+        return result;
+    }
+
+    private static void writeList(DataOutputStream output, List<String> values) throws IOException
+    {
+        output.writeInt(values.size());
+
+        for(String value : values)
+        {
+            writeString(output, value);
+        }
+    }
+
+    //writeUTF stops at 64 KB, flags written by generators can be longer.
+    private static String readString(DataInputStream input) throws IOException
+    {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+}
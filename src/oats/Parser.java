@@ -1,35 +1,152 @@
 package oats;
 
-import java.io.File;
-
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+//Reads a build file line by line straight out of whatever holds it, usually a CharBuffer over the mapped file.
+//Lines may end in \n or \r\n no matter which OS wrote them.
 public class Parser
 {
-    private final String source;
-    private final BuildInfo buildInfo;
-    private int start = 0;
+    private static final String[] COMMANDS =
+    {
+        "FILE", "INCLUDE", "CONSTANT", "LIBRARY", "OBJECT", "DIRECTORY", "COMPILER", "C_VERSION", "TYPE", "BUILD",
+        "CUSTOM_BUILD", "COMPILER_FLAGS", "LINKER_FLAGS", "OUTPUT", "PRECOMPILED_HEADER", "UNITY", "UNITY_EXCLUDE",
+        "TARGET", "DEPENDS", "THIN_ARCHIVE", "PGO_TRAIN", "PGO_DRIFT",
+        "LINKER", "SPLIT_DWARF"
+    };
+
+    private static class PathCheck
+    {
+        final int line;
+        final String command;
+        final String path;
+        final boolean directory;
+
+        PathCheck(int line, String command, String path, boolean directory)
+        {
+            this.line = line;
+            this.command = command;
+            this.path = path;
+            this.directory = directory;
+        }
+
+        boolean exists()
+        {
+            Path file = Paths.get(path);
+            return directory ? Files.isDirectory(file) : Files.isRegularFile(file);
+        }
+    }
+
+    private static class ParseError
+    {
+        final int line;
+        final String message;
+
+        ParseError(int line, String message)
+        {
+            this.line = line;
+            this.message = message;
+        }
+    }
+
+    private final CharSequence source;
+    private final int length;
+    private final List<BuildInfo> targets = new ArrayList<>();
+    private final List<PathCheck> checks = new ArrayList<>();
+    private final List<ParseError> errors = new ArrayList<>();
+    private BuildInfo buildInfo;
+    private BuildInfo shared;
     private int current = 0;
-    private int line = 1;
+    private int line = 0;
+    private int lineStart;
+    private int colon;
+    private int lineEnd;
     private boolean error = false;
 
-    public Parser(String source)
+    public Parser(CharSequence source)
     {
         this.source = source;
+        this.length = source.length();
         this.buildInfo = new BuildInfo();
     }
 
-    public BuildInfo parseFile()
+    public BuildGraph parseFile()
     {
-        while(!isAtEnd())
+        while(nextLine())
         {
             parseCommand();
         }
 
+        checkPaths();
+
+        //The path checks come last, sorting puts every error back on the line it belongs to.
+        errors.sort(Comparator.comparingInt(e -> e.line));
+        for(ParseError e : errors)
+        {
+            System.err.println("[" + e.line + "] " + e.message + ".");
+        }
+
+        error = !errors.isEmpty();
+
+        //Without TARGET: blocks everything belongs to one unnamed target.
+        if(targets.isEmpty())
+        {
+            targets.add(buildInfo);
+        }
+
+        BuildGraph graph = new BuildGraph(targets);
+        checkGraph(graph);
+
         if(error)
         {
-            System.exit(1);
+            throw new BuildFailedException();
+        }
+
+        return graph;
+    }
+
+    private void checkGraph(BuildGraph graph)
+    {
+        Set<String> outputs = new HashSet<>();
+
+        for(BuildInfo target : targets)
+        {
+            for(String dependency : target.dependencies)
+            {
+                if(graph.getTarget(dependency) == null)
+                {
+                    graphError("target " + target.name + " depends on unknown target " + dependency);
+                }
+            }
+
+            if(!outputs.add(target.outputName + " " + target.binaryType))
+            {
+                graphError("more than one target writes the output " + target.outputName);
+            }
+
+            if(target.buildType == BuildType.PGO && target.pgoTrain.isEmpty())
+            {
+                graphError("BUILD:pgo needs a PGO_TRAIN: command" + (target.name.isEmpty() ? "" : " in target " + target.name));
+            }
+
+            //The training command runs the executable, or one that loads the shared library.
+            if(target.buildType == BuildType.PGO && target.binaryType != BinaryType.EXECUTABLE && target.binaryType != BinaryType.SHARED_LIB)
+            {
+                graphError("BUILD:pgo only builds executables and shared libraries" + (target.name.isEmpty() ? "" : ", not target " + target.name));
+            }
         }
 
-        return buildInfo;
+        if(graph.getBuildOrder() == null)
+        {
+            graphError("the DEPENDS: edges between targets form a cycle");
+        }
     }
 
     private void parseCommand()
@@ -52,12 +169,18 @@ public class Parser
             case "COMPILER_FLAGS": parseCompilerFlagsCommand(); break;
             case "LINKER_FLAGS": parseLinkerFlagsCommand(); break;
             case "OUTPUT": parseOutputCommand(); break;
-
-            default:
-            {
-                error("Unknown command \"" + command + "\"");
-                consumeLine();
-            }
+            case "PRECOMPILED_HEADER": parsePrecompiledHeaderCommand(); break;
+            case "UNITY": parseUnityCommand(); break;
+            case "UNITY_EXCLUDE": parseUnityExcludeCommand(); break;
+            case "TARGET": parseTargetCommand(); break;
+            case "DEPENDS": parseDependsCommand(); break;
+            case "THIN_ARCHIVE": parseThinArchiveCommand(); break;
+            case "PGO_TRAIN": parsePgoTrainCommand(); break;
+            case "PGO_DRIFT": parsePgoDriftCommand(); break;
+            case "LINKER": parseLinkerCommand(); break;
+            case "SPLIT_DWARF": parseSplitDwarfCommand(); break;
+
+            default: error("Unknown command \"" + command + "\"");
         }
     }
 
@@ -116,12 +239,7 @@ public class Parser
             return;
         }
 
-        if(!fileExists(param))
-        {
-            commandError("FILE", param + " is not a file or it doesn't exist");
-            return;
-        }
-
+        checkFile("FILE", param);
         buildInfo.addFile(param);
     }
 
@@ -130,16 +248,22 @@ public class Parser
         String param = getParameter();
         if(param == null)
         {
-            commandError("DIRECTORY", "requires parameter", "directory_name");
+            commandError("DIRECTORY", "requires parameter", "directory_name or src/** !src/excluded/**");
             return;
         }
 
-        if(!directoryExists(param))
+        List<String> roots = SourceScanner.getRoots(param);
+        if(roots.isEmpty())
         {
-            commandError("DIRECTORY", param + " is not a directory or it doesn't exist");
+            commandError("DIRECTORY", param + " only excludes files, it needs a directory or pattern to start from");
             return;
         }
 
+        for(String root : roots)
+        {
+            checkDirectory("DIRECTORY", root);
+        }
+
         buildInfo.addDirectory(param);
     }
 
@@ -164,12 +288,7 @@ public class Parser
             return;
         }
 
-        if(!directoryExists(param))
-        {
-            commandError("INCLUDE", param + " is not a directory or it doesn't exits");
-            return;
-        }
-
+        checkDirectory("INCLUDE", param);
         buildInfo.addIncludePath(param);
     }
 
@@ -214,7 +333,7 @@ public class Parser
         String param = getParameter();
         if(param == null)
         {
-            commandError("TYPE", "requires parameter", "object/shared/executable");
+            commandError("TYPE", "requires parameter", "object/shared/static/executable");
             return;
         }
 
@@ -222,8 +341,9 @@ public class Parser
         {
             case "object": buildInfo.binaryType = BinaryType.OBJECT_LIB; break;
             case "shared": buildInfo.binaryType = BinaryType.SHARED_LIB; break;
+            case "static": buildInfo.binaryType = BinaryType.STATIC_LIB; break;
             case "executable": buildInfo.binaryType = BinaryType.EXECUTABLE; break;
-            default: commandError("TYPE", param + " is not a known binary type", "object/shared/executable");
+            default: commandError("TYPE", param + " is not a known binary type", "object/shared/static/executable");
         }
     }
 
@@ -232,13 +352,16 @@ public class Parser
         String param = getParameter();
         if(param == null)
         {
-            commandError("BUILD", "requires parameter", "release/debug/custom");
+            commandError("BUILD", "requires parameter", "release/release-lto/release-thinlto/pgo/debug/custom");
             return;
         }
 
         switch(param)
         {
             case "release": buildInfo.buildType = BuildType.RELEASE; break;
+            case "release-lto": buildInfo.buildType = BuildType.RELEASE_LTO; break;
+            case "release-thinlto": buildInfo.buildType = BuildType.RELEASE_THINLTO; break;
+            case "pgo": buildInfo.buildType = BuildType.PGO; break;
             case  "debug": buildInfo.buildType = BuildType.DEBUG; break;
             default: buildInfo.buildType = BuildType.CUSTOM;
         }
@@ -280,6 +403,26 @@ public class Parser
         buildInfo.linkedFlags = param;
     }
 
+    private void parseLinkerCommand()
+    {
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("LINKER", "requires parameter", "bfd/gold/lld/mold/default");
+            return;
+        }
+
+        switch(param)
+        {
+            case "bfd": buildInfo.linker = LinkerType.BFD; break;
+            case "gold": buildInfo.linker = LinkerType.GOLD; break;
+            case "lld": buildInfo.linker = LinkerType.LLD; break;
+            case "mold": buildInfo.linker = LinkerType.MOLD; break;
+            case "default": buildInfo.linker = LinkerType.DEFAULT; break;
+            default: commandError("LINKER", param + " is not a known linker", "bfd/gold/lld/mold/default");
+        }
+    }
+
     private void parseOutputCommand()
     {
         String param = getParameter();
@@ -298,132 +441,309 @@ public class Parser
         buildInfo.outputName = param;
     }
 
-    private boolean directoryExists(String name)
+    private void parsePrecompiledHeaderCommand()
     {
-        File file = new File(name);
-        return file.isDirectory();
-    }
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("PRECOMPILED_HEADER", "requires parameter", "header_name.h");
+            return;
+        }
 
-    private boolean fileExists(String name)
-    {
-        File file = new File(name);
-        return file.isFile();
+        if(!param.endsWith(".h"))
+        {
+            commandError("PRECOMPILED_HEADER", "only \".h\" files can be precompiled", "header_name.h");
+            return;
+        }
+
+        checkFile("PRECOMPILED_HEADER", param);
+        buildInfo.precompiledHeader = param;
     }
 
-    private void error(String message)
+    private void parseUnityCommand()
     {
-        error = true;
-        System.err.println("[" + getLineNumber() + "] " + message + ".");
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("UNITY", "requires parameter", "batch_size_in_bytes/off");
+            return;
+        }
+
+        if(param.equals("off"))
+        {
+            buildInfo.unityBatchSize = 0;
+            return;
+        }
+
+        try
+        {
+            buildInfo.unityBatchSize = Long.parseLong(param);
+        }
+        catch(NumberFormatException e)
+        {
+            buildInfo.unityBatchSize = -1;
+        }
+
+        if(buildInfo.unityBatchSize <= 0)
+        {
+            buildInfo.unityBatchSize = 0;
+            commandError("UNITY", param + " is not a valid batch size", "batch_size_in_bytes/off");
+        }
     }
 
-    private void commandError(String command, String message, String exampleUsage)
+    private void parseUnityExcludeCommand()
     {
-        error(command + ": " + message + " " + "( " + exampleUsage + " )");
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("UNITY_EXCLUDE", "requires parameter", "file_name.c");
+            return;
+        }
+
+        checkFile("UNITY_EXCLUDE", param);
+        buildInfo.addUnityExclude(param);
     }
 
-    private void commandError(String command, String message)
+    private void parseThinArchiveCommand()
     {
-        error(command + ": " + message);
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("THIN_ARCHIVE", "requires parameter", "on/off");
+            return;
+        }
+
+        switch(param)
+        {
+            case "on": buildInfo.thinArchive = true; break;
+            case "off": buildInfo.thinArchive = false; break;
+            default: commandError("THIN_ARCHIVE", param + " is not on or off", "on/off");
+        }
     }
 
-    private void consumeLine()
+    private void parseSplitDwarfCommand()
     {
-        while(peek() != '\n' && !isAtEnd())
+        String param = getParameter();
+        if(param == null)
         {
-            advance();
+            commandError("SPLIT_DWARF", "requires parameter", "on/off");
+            return;
         }
 
-        advance();
-        syncIndexes();
+        switch(param)
+        {
+            case "on": buildInfo.splitDwarf = true; break;
+            case "off": buildInfo.splitDwarf = false; break;
+            default: commandError("SPLIT_DWARF", param + " is not on or off", "on/off");
+        }
     }
 
-    private char peek()
+    //Runs through the shell in the directory the build runs in, after the instrumented build of the target.
+    private void parsePgoTrainCommand()
     {
-        if(isAtEnd())
+        String param = getParameter();
+        if(param == null)
         {
-            return '\0';
+            commandError("PGO_TRAIN", "requires parameter", "training_command");
+            return;
         }
 
-        return source.charAt(current);
+        buildInfo.pgoTrain = param;
     }
 
-    private char advance()
+    private void parsePgoDriftCommand()
     {
-        if(isAtEnd())
+        String param = getParameter();
+        if(param == null)
         {
-            return '\0';
+            commandError("PGO_DRIFT", "requires parameter", "percent_of_changed_sources");
+            return;
         }
 
-        ++current;
-        char result = source.charAt(current - 1);
-        if(result == '\n')
+        try
         {
-            ++line;
+            buildInfo.pgoDrift = Long.parseLong(param);
+        }
+        catch(NumberFormatException e)
+        {
+            buildInfo.pgoDrift = -1;
         }
 
-        return result;
+        if(buildInfo.pgoDrift < 0 || buildInfo.pgoDrift > 100)
+        {
+            buildInfo.pgoDrift = 20;
+            commandError("PGO_DRIFT", param + " is not a percentage", "percent_of_changed_sources");
+        }
     }
 
-    private boolean isAtEnd()
+    //Everything before the first TARGET: is shared by all targets, every TARGET: starts from a copy of it.
+    private void parseTargetCommand()
     {
-        return current >= source.length();
-    }
+        String param = getParameter();
+        if(param == null)
+        {
+            commandError("TARGET", "requires parameter", "target_name");
+            return;
+        }
 
-    private int getLineNumber()
-    {
-        if(isAtEnd())
+        for(BuildInfo target : targets)
         {
-            return line;
+            if(target.name.equals(param))
+            {
+                commandError("TARGET", "there already is a target called " + param);
+                return;
+            }
         }
 
-        return line - 1;
+        if(targets.isEmpty())
+        {
+            shared = buildInfo;
+        }
+
+        buildInfo = new BuildInfo(shared);
+        buildInfo.name = param;
+        buildInfo.outputName = param;
+        targets.add(buildInfo);
     }
 
-    private String getCommand()
+    private void parseDependsCommand()
     {
-        syncIndexes();
-        while(peek() != ':')
+        String param = getParameter();
+        if(param == null)
         {
-            if(peek() == '\n')
-            {
-                advance();
-                syncIndexes();
-                continue;
-            }
+            commandError("DEPENDS", "requires parameter", "target_name");
+            return;
+        }
 
-            advance();
+        if(targets.isEmpty())
+        {
+            commandError("DEPENDS", "can only be used inside a TARGET: block");
+            return;
         }
 
-        advance();
+        if(param.equals(buildInfo.name))
+        {
+            commandError("DEPENDS", "a target can't depend on itself");
+            return;
+        }
 
-        return source.substring(start, current - 1);
+        buildInfo.addDependency(param);
     }
 
-    private String getParameter()
+    //All FILE:, INCLUDE: and similar paths are checked at the end, in parallel, so a build file with tens of
+    //thousands of them doesn't wait for one stat after another.
+    private void checkPaths()
     {
-        syncIndexes();
-        while(peek() != '\n' && peek() != '\0')
+        List<PathCheck> failed = checks.parallelStream().filter(check -> !check.exists()).collect(Collectors.toList());
+
+        for(PathCheck check : failed)
         {
-            advance();
+            String kind = check.directory ? "a directory" : "a file";
+            errors.add(new ParseError(check.line, check.command + ": " + check.path + " is not " + kind + " or it doesn't exist"));
         }
+    }
+
+    private void checkFile(String command, String path)
+    {
+        checks.add(new PathCheck(line, command, path, false));
+    }
+
+    private void checkDirectory(String command, String path)
+    {
+        checks.add(new PathCheck(line, command, path, true));
+    }
+
+    private void error(String message)
+    {
+        errors.add(new ParseError(line, message));
+    }
+
+    private void commandError(String command, String message, String exampleUsage)
+    {
+        error(command + ": " + message + " " + "( " + exampleUsage + " )");
+    }
+
+    private void commandError(String command, String message)
+    {
+        error(command + ": " + message);
+    }
 
-        advance();
+    private void graphError(String message)
+    {
+        error = true;
+        System.err.println(message + ".");
+    }
 
-        if(start == current || (start + 2 == current && current != source.length()))
+    //Finds the next line with a command on it. Lines without a colon are skipped, a \r in front of the line
+    //break is not part of the line.
+    private boolean nextLine()
+    {
+        while(current < length)
         {
-            return null;
+            int start = current;
+            int end = start;
+            while(end < length && source.charAt(end) != '\n')
+            {
+                ++end;
+            }
+
+            current = end + 1;
+            ++line;
+
+            while(end > start && source.charAt(end - 1) == '\r')
+            {
+                --end;
+            }
+
+            for(int i = start; i < end; ++i)
+            {
+                if(source.charAt(i) == ':')
+                {
+                    lineStart = start;
+                    colon = i;
+                    lineEnd = end;
+                    return true;
+                }
+            }
         }
 
-        if(isAtEnd())
+        return false;
+    }
+
+    //The name of a known command is returned without copying it out of the source, only an unknown one is.
+    private String getCommand()
+    {
+        int commandLength = colon - lineStart;
+
+        for(String command : COMMANDS)
         {
-            return source.substring(start, current);
+            if(command.length() != commandLength)
+            {
+                continue;
+            }
+
+            int i = 0;
+            while(i < commandLength && command.charAt(i) == source.charAt(lineStart + i))
+            {
+                ++i;
+            }
+
+            if(i == commandLength)
+            {
+                return command;
+            }
         }
 
-        return source.substring(start, current - OSInfo.lineBreakCount());
+        return source.subSequence(lineStart, colon).toString();
     }
 
-    private void syncIndexes()
+    private String getParameter()
     {
-        start = current;
+        if(colon + 1 == lineEnd)
+        {
+            return null;
+        }
+
+        return source.subSequence(colon + 1, lineEnd).toString();
     }
 }
@@ -0,0 +1,99 @@
+package oats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+//Where the precompiled header of one configuration lives and the flags to create and use it.
+//The header is reached through a stub that includes it by absolute path: gcc finds stub.gch next to the
+//stub, clang gets the .pch handed over explicitly and cl and clang-cl compile the stub as a .c file with /Yc.
+public class PrecompiledHeader
+{
+    public final String header;
+    public final String stub;
+    public final String output;
+    public final String object;
+
+    private final CompilerType compiler;
+
+    public PrecompiledHeader(BuildInfo buildInfo, File buildDirectory, List<String> params)
+    {
+        this.compiler = buildInfo.compiler;
+        this.header = new File(buildInfo.precompiledHeader).getAbsolutePath();
+
+        //One directory per flag set so switching between debug and release keeps both headers around.
+        File directory = new File(buildDirectory, "pch" + File.separator + Hash.ofString(CommandLine.join(params)).substring(0, 16));
+        String name = new File(header).getName();
+
+        if(isClStyle())
+        {
+            stub = new File(directory, name + ".c").getPath();
+            output = new File(directory, name + ".pch").getPath();
+            object = new File(directory, name + OSInfo.getObjectFileExtension()).getPath();
+        }
+        else if(compiler == CompilerType.CLANG)
+        {
+            stub = new File(directory, name).getPath();
+            output = stub + ".pch";
+            object = null;
+        }
+        else
+        {
+            stub = new File(directory, name).getPath();
+            output = stub + ".gch";
+            object = null;
+        }
+    }
+
+    public void writeStub() throws IOException
+    {
+        File file = new File(stub);
+        byte[] content = ("#include \"" + header.replace("\\", "\\\\") + "\"\n").getBytes(StandardCharsets.UTF_8);
+
+        if(file.isFile() && Arrays.equals(Files.readAllBytes(file.toPath()), content))
+        {
+            return;
+        }
+
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+    }
+
+    public List<String> constructCreateParams(List<String> params)
+    {
+        List<String> arguments = new ArrayList<>(params);
+
+        if(isClStyle())
+        {
+            arguments.addAll(CommandLine.of("/showIncludes", "/c", stub, "/Yc" + header, "/Fp" + output, "/Fo" + object));
+            return arguments;
+        }
+
+        arguments.addAll(CommandLine.of("-MMD", "-MF", output + ".d", "-x", "c-header", stub, "-o", output));
+        return arguments;
+    }
+
+    public List<String> constructUseParams()
+    {
+        if(isClStyle())
+        {
+            return CommandLine.of("/Yu" + header, "/FI" + header, "/Fp" + output);
+        }
+
+        if(compiler == CompilerType.CLANG)
+        {
+            return CommandLine.of("-include-pch", output);
+        }
+
+        return CommandLine.of("-Winvalid-pch", "-include", stub);
+    }
+
+    private boolean isClStyle()
+    {
+        return compiler == CompilerType.CL || compiler == CompilerType.CLANG_CL;
+    }
+}
@@ -0,0 +1,77 @@
+package oats;
+
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//A fixed pool that hands out the queued job with the highest priority first instead of the oldest one.
+//Compiles are queued with their expected duration so the longest ones start first and the build doesn't
+//end waiting on one big translation unit. Anything queued without a priority, like links and precompiled
+//headers, is something other jobs wait on and goes before all of them.
+public class PriorityExecutor extends ThreadPoolExecutor
+{
+    private static final AtomicLong sequence = new AtomicLong(0);
+
+    private static class PrioritizedJob implements Runnable
+    {
+        final Runnable job;
+        final long priority;
+        final long order = sequence.getAndIncrement();
+
+        PrioritizedJob(Runnable job, long priority)
+        {
+            this.job = job;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run()
+        {
+            job.run();
+        }
+    }
+
+    public PriorityExecutor(int threads, ThreadFactory threadFactory)
+    {
+        super(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(64, createComparator()), threadFactory);
+    }
+
+    @Override
+    public void execute(Runnable job)
+    {
+        if(job instanceof PrioritizedJob)
+        {
+            super.execute(job);
+            return;
+        }
+
+        super.execute(new PrioritizedJob(job, Long.MAX_VALUE));
+    }
+
+    //An executor for CompletableFuture that queues everything it gets with the given priority.
+    public Executor withPriority(long priority)
+    {
+        return job -> execute(new PrioritizedJob(job, priority));
+    }
+
+    //Highest priority first, jobs with the same priority in the order they came in.
+    private static Comparator<Runnable> createComparator()
+    {
+        return (a, b) ->
+        {
+            PrioritizedJob first = (PrioritizedJob)a;
+            PrioritizedJob second = (PrioritizedJob)b;
+
+            if(first.priority != second.priority)
+            {
+                return Long.compare(second.priority, first.priority);
+            }
+
+            return Long.compare(first.order, second.order);
+        };
+    }
+}
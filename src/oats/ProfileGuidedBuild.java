@@ -0,0 +1,381 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//The profile of a BUILD:pgo target. An instrumented build of the target runs the PGO_TRAIN: command, what it
+//records is merged into a profile the real build is optimized with: .gcda files for gcc, merged.profdata
+//made by llvm-profdata for clang and clang-cl.
+//gcc writes a .gcda file next to every instrumented object and reads it from next to the object it compiles,
+//the objects of both builds have the same names so the files are copied over from one to the other.
+//Every configuration of compiler, flags and training command keeps its own profile in
+//.obgbuild/pgo/<configuration>, together with the hashes the sources had when it was trained. It is used until
+//more than PGO_DRIFT: percent of the sources changed, then the target is trained again.
+public class ProfileGuidedBuild
+{
+    private static final String VERSION = "OBGBUILD_PGO 1";
+
+    public final File directory;
+
+    private final BuildInfo buildInfo;
+    private final File file;
+    private final File data;
+
+    private String profileHash = "";
+    private Map<String, String> trainedSources = new LinkedHashMap<>();
+
+    public ProfileGuidedBuild(BuildInfo buildInfo, File buildDirectory)
+    {
+        this.buildInfo = buildInfo;
+        this.directory = new File(new File(buildDirectory, "pgo"), getConfiguration(buildInfo));
+        this.file = new File(directory, "profile");
+        this.data = new File(directory, buildInfo.compiler == CompilerType.GCC ? "gcda" : "raw");
+
+        load();
+    }
+
+    //cl only has its own PGO through pgort and pgomgr, which isn't supported.
+    public static boolean isSupported(CompilerType compiler)
+    {
+        return compiler == CompilerType.GCC || compiler == CompilerType.CLANG || compiler == CompilerType.CLANG_CL;
+    }
+
+    //Sources that changed since the profile was trained are optimized with what the profile knows about the
+    //rest of the code, which stops being worth much once enough of them changed.
+    public boolean needsTraining(List<String> sources)
+    {
+        if(profileHash.isEmpty() || !hasProfile())
+        {
+            System.out.println("No profile for this configuration yet, training it.");
+            return true;
+        }
+
+        int changed = 0;
+        for(String source : sources)
+        {
+            String hash = trainedSources.get(source);
+            if(hash == null || !hash.equals(FileHashes.get(source)))
+            {
+                ++changed;
+            }
+        }
+
+        for(String source : trainedSources.keySet())
+        {
+            if(!sources.contains(source))
+            {
+                ++changed;
+            }
+        }
+
+        long drift = (long)changed * 100 / Math.max(1, Math.max(sources.size(), trainedSources.size()));
+        if(drift > buildInfo.pgoDrift)
+        {
+            System.out.println("Sources drifted " + drift + "% since the profile was trained, training it again.");
+            return true;
+        }
+
+        return false;
+    }
+
+    //Goes into the flags of every translation unit so a new profile recompiles them.
+    public String getProfileHash()
+    {
+        return profileHash;
+    }
+
+    //A training command with threads would lose counts without atomic updates.
+    public List<String> getGenerateFlags()
+    {
+        String raw = new File(data, "%m-%p.profraw").getAbsolutePath();
+
+        switch(buildInfo.compiler)
+        {
+            case GCC: return CommandLine.of("-O2", "-fprofile-generate", "-fprofile-update=prefer-atomic");
+            case CLANG: return CommandLine.of("-O2", "-fprofile-instr-generate=" + raw);
+            case CLANG_CL: return CommandLine.of("/O2", "/Oi", "/fp:fast", "-fprofile-instr-generate=" + raw);
+        }
+
+        return new ArrayList<>();
+    }
+
+    //The instrumented binary needs the profiling runtime.
+    public List<String> getGenerateLinkFlags()
+    {
+        switch(buildInfo.compiler)
+        {
+            case GCC: return CommandLine.of("-fprofile-generate");
+            case CLANG:
+            case CLANG_CL: return CommandLine.of("-fprofile-instr-generate");
+        }
+
+        return new ArrayList<>();
+    }
+
+    //Functions the training never reached are optimized as usual instead of for size, and a profile that is a
+    //little behind the sources isn't worth a warning for every function that changed.
+    public List<String> getUseFlags()
+    {
+        String merged = getMergedFile().getAbsolutePath();
+
+        switch(buildInfo.compiler)
+        {
+            case GCC: return CommandLine.of("-O2", "-fprofile-use", "-fprofile-partial-training", "-Wno-missing-profile");
+            case CLANG: return CommandLine.of("-O2", "-fprofile-instr-use=" + merged,
+                    "-Wno-profile-instr-out-of-date", "-Wno-profile-instr-unprofiled");
+            case CLANG_CL: return CommandLine.of("/O2", "/Oi", "/fp:fast", "-fprofile-instr-use=" + merged,
+                    "-Wno-profile-instr-out-of-date", "-Wno-profile-instr-unprofiled");
+        }
+
+        return new ArrayList<>();
+    }
+
+    //gcc adds the counters of a run to the .gcda files that are already there, so the old profile has to go first.
+    public void clear(File instrumentedObjects) throws IOException
+    {
+        profileHash = "";
+        trainedSources.clear();
+
+        for(String name : listFiles(data, ""))
+        {
+            Files.deleteIfExists(new File(name).toPath());
+        }
+
+        for(String name : listFiles(instrumentedObjects, ".gcda"))
+        {
+            Files.deleteIfExists(new File(name).toPath());
+        }
+
+        Files.deleteIfExists(getMergedFile().toPath());
+        data.mkdirs();
+    }
+
+    //Keeps the .gcda files the training run wrote next to the instrumented objects.
+    public void collect(File instrumentedObjects) throws IOException
+    {
+        for(String name : listFiles(instrumentedObjects, ".gcda"))
+        {
+            File recorded = new File(name);
+            Files.copy(recorded.toPath(), new File(data, recorded.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //Puts the .gcda files of this configuration next to the objects gcc is about to compile, and takes away the
+    //ones another configuration left there.
+    public void install(File objectDirectory) throws IOException
+    {
+        if(buildInfo.compiler != CompilerType.GCC)
+        {
+            return;
+        }
+
+        for(String name : listFiles(objectDirectory, ".gcda"))
+        {
+            if(!new File(data, new File(name).getName()).isFile())
+            {
+                Files.deleteIfExists(new File(name).toPath());
+            }
+        }
+
+        for(String name : listFiles(data, ".gcda"))
+        {
+            File recorded = new File(name);
+            File installed = new File(objectDirectory, recorded.getName());
+
+            if(installed.length() != recorded.length() || installed.lastModified() != recorded.lastModified())
+            {
+                Files.copy(recorded.toPath(), installed.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+    }
+
+    //The llvm-profdata command that merges the raw profiles of the training run, null for gcc which reads its
+    //.gcda files directly. Also null when the training run didn't write anything.
+    public List<String> getMergeCommand()
+    {
+        if(buildInfo.compiler == CompilerType.GCC)
+        {
+            return null;
+        }
+
+        List<String> raw = listFiles(data, ".profraw");
+        if(raw.isEmpty())
+        {
+            return null;
+        }
+
+        List<String> command = getProfdata();
+        command.addAll(CommandLine.of("merge", "-output=" + getMergedFile().getPath()));
+        command.addAll(raw);
+        return command;
+    }
+
+    public boolean hasProfile()
+    {
+        if(buildInfo.compiler == CompilerType.GCC)
+        {
+            return !listFiles(data, ".gcda").isEmpty();
+        }
+
+        return getMergedFile().isFile();
+    }
+
+    //Remembers the trained sources and a hash of the profile once training and merging worked.
+    public void save(List<String> sources)
+    {
+        StringBuilder profile = new StringBuilder();
+        if(buildInfo.compiler == CompilerType.GCC)
+        {
+            for(String name : listFiles(data, ".gcda"))
+            {
+                profile.append(name).append(' ').append(Hash.ofFile(name)).append('\n');
+            }
+        }
+        else
+        {
+            profile.append(Hash.ofFile(getMergedFile().getPath()));
+        }
+
+        profileHash = Hash.ofString(profile.toString());
+
+        trainedSources = new LinkedHashMap<>();
+        for(String source : sources)
+        {
+            String hash = FileHashes.get(source);
+            if(hash != null)
+            {
+                trainedSources.put(source, hash);
+            }
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        directory.mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+            writer.write("P\t" + profileHash);
+            writer.newLine();
+
+            for(Map.Entry<String, String> e : trainedSources.entrySet())
+            {
+                writer.write("S\t" + e.getKey() + "\t" + e.getValue());
+                writer.newLine();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write profile state " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write profile state " + file + ".");
+        }
+    }
+
+    private void load()
+    {
+        if(!file.isFile())
+        {
+            return;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return;
+            }
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", -1);
+                if(fields[0].equals("P") && fields.length == 2)
+                {
+                    profileHash = fields[1];
+                }
+                else if(fields[0].equals("S") && fields.length == 3)
+                {
+                    trainedSources.put(fields[1], fields[2]);
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not read profile state " + file + ", training the profile again.");
+            profileHash = "";
+            trainedSources.clear();
+        }
+    }
+
+    private File getMergedFile()
+    {
+        return new File(directory, "merged.profdata");
+    }
+
+    private static List<String> listFiles(File directory, String extension)
+    {
+        List<String> result = new ArrayList<>();
+
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return result;
+        }
+
+        Arrays.sort(files);
+        for(File recorded : files)
+        {
+            if(recorded.isFile() && recorded.getName().endsWith(extension))
+            {
+                result.add(recorded.getPath());
+            }
+        }
+
+        return result;
+    }
+
+    //Xcode only puts llvm-profdata on the path through xcrun.
+    private static List<String> getProfdata()
+    {
+        if(OSInfo.MAC && !StaticLibrary.isOnPath("llvm-profdata"))
+        {
+            return CommandLine.of("xcrun", "llvm-profdata");
+        }
+
+        return CommandLine.of("llvm-profdata");
+    }
+
+    //Everything that changes what the instrumented build does or which code the training runs.
+    private static String getConfiguration(BuildInfo buildInfo)
+    {
+        String configuration = buildInfo.compiler + "\n" +
+                buildInfo.compilerCommand + "\n" +
+                buildInfo.langStd + "\n" +
+                buildInfo.compilerFlags + "\n" +
+                buildInfo.linkedFlags + "\n" +
+                String.join(" ", buildInfo.constants) + "\n" +
+                String.join(" ", buildInfo.includePaths) + "\n" +
+                buildInfo.pgoTrain;
+
+        return Hash.ofString(configuration).substring(0, 16);
+    }
+}
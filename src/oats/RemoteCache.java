@@ -0,0 +1,276 @@
+package oats;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Object cache shared over HTTP: GET <url>/<key> fetches an object, PUT <url>/<key> stores one.
+//Requests run on their own threads and are given up after the timeout. The first timeout or connection error
+//turns the remote cache off for the rest of the build, so a slow or unreachable server costs one worker one
+//timeout instead of every translation unit a timeout each.
+public class RemoteCache
+{
+    //Uploads run on a few threads, the rest wait in the queue until finish gives up on them.
+    private static final int UPLOAD_THREADS = 4;
+
+    private final String url;
+    private final int timeout;
+    private final ExecutorService executor;
+    private final ExecutorService uploader;
+    private final List<Future<?>> uploads = new ArrayList<>();
+    private final AtomicBoolean disabled = new AtomicBoolean(false);
+
+    private final AtomicInteger hits = new AtomicInteger(0);
+    private final AtomicInteger misses = new AtomicInteger(0);
+    private final AtomicInteger timeouts = new AtomicInteger(0);
+
+    public RemoteCache(String url, int timeout)
+    {
+        this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.timeout = timeout;
+        this.executor = Executors.newCachedThreadPool(runnable -> createThread(runnable, "remote-cache"));
+        this.uploader = new ThreadPoolExecutor(UPLOAD_THREADS, UPLOAD_THREADS, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> createThread(runnable, "remote-cache-upload"));
+    }
+
+    public boolean fetch(String key, String object)
+    {
+        if(disabled.get())
+        {
+            return false;
+        }
+
+        Future<byte[]> download = executor.submit(() -> get(key));
+        byte[] data;
+
+        try
+        {
+            data = download.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            download.cancel(true);
+            timeouts.incrementAndGet();
+            disable("did not answer within " + timeout + " ms");
+            return false;
+        }
+        catch(ExecutionException e)
+        {
+            misses.incrementAndGet();
+            disable("could not be reached (" + e.getCause() + ")");
+            return false;
+        }
+        catch(InterruptedException e)
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        if(data == null)
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        try
+        {
+            File file = new File(object);
+            Path temporary = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), file.getName(), ".tmp");
+            Files.write(temporary, data);
+            Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            misses.incrementAndGet();
+            return false;
+        }
+
+        hits.incrementAndGet();
+        return true;
+    }
+
+    //The object is read right away because the build may overwrite it before the upload runs.
+    public void store(String key, String object)
+    {
+        byte[] data;
+        try
+        {
+            data = Files.readAllBytes(new File(object).toPath());
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+
+        synchronized(uploads)
+        {
+            if(!disabled.get())
+            {
+                uploads.add(uploader.submit(() -> put(key, data)));
+            }
+        }
+    }
+
+    //Gives pending uploads one timeout, all together, to finish before the build exits.
+    public void finish()
+    {
+        List<Future<?>> pending;
+        synchronized(uploads)
+        {
+            pending = new ArrayList<>(uploads);
+            uploads.clear();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+
+        for(Future<?> upload : pending)
+        {
+            try
+            {
+                upload.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+            catch(InterruptedException | ExecutionException | TimeoutException e)
+            {
+                break;
+            }
+        }
+
+        uploader.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public int getHits()
+    {
+        return hits.get();
+    }
+
+    public int getMisses()
+    {
+        return misses.get();
+    }
+
+    public int getTimeouts()
+    {
+        return timeouts.get();
+    }
+
+    public boolean isDisabled()
+    {
+        return disabled.get();
+    }
+
+    private void disable(String reason)
+    {
+        if(disabled.compareAndSet(false, true))
+        {
+            System.err.println("Remote cache " + url + " " + reason + ", not using it for the rest of this build.");
+        }
+    }
+
+    private static Thread createThread(Runnable runnable, String name)
+    {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private byte[] get(String key) throws IOException
+    {
+        HttpURLConnection connection = open(key, "GET");
+
+        if(connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+        {
+            //Draining the error body lets the connection go back to the keep-alive pool.
+            InputStream error = connection.getErrorStream();
+            if(error != null)
+            {
+                readAll(error);
+            }
+
+            return null;
+        }
+
+        return readAll(connection.getInputStream());
+    }
+
+    private void put(String key, byte[] data)
+    {
+        try
+        {
+            HttpURLConnection connection = open(key, "PUT");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(data.length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+
+            try(OutputStream stream = connection.getOutputStream())
+            {
+                stream.write(data);
+            }
+
+            if(connection.getResponseCode() >= 400)
+            {
+                InputStream error = connection.getErrorStream();
+                if(error != null)
+                {
+                    readAll(error);
+                }
+            }
+            else
+            {
+                readAll(connection.getInputStream());
+            }
+        }
+        catch(IOException e)
+        {
+            //A failed upload only means somebody else compiles this object again, but a server that can't be
+            //reached won't take the next one either.
+            disable("could not be reached (" + e + ")");
+        }
+    }
+
+    private byte[] readAll(InputStream stream) throws IOException
+    {
+        try(InputStream input = stream)
+        {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+
+            int read;
+            while((read = input.read(buffer)) != -1)
+            {
+                output.write(buffer, 0, read);
+            }
+
+            return output.toByteArray();
+        }
+    }
+
+    private HttpURLConnection open(String key, String method) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection)new URL(url + "/" + key).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setUseCaches(false);
+        return connection;
+    }
+}
@@ -0,0 +1,433 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+
+//Expands DIRECTORY: entries into the .c files they stand for. An entry is a list of patterns, the ones starting
+//with ! take files out again: "src" is every .c file directly in src, "src/**" every one below it and
+//"src/** !src/legacy/**" every one except those under src/legacy.
+//Directories are listed in parallel. The listing of every directory is kept in .obgbuild/sources together with
+//its modification time, which changes whenever an entry is added, removed or renamed, so an unchanged
+//directory only costs one stat on the next build.
+public class SourceScanner
+{
+    private static final String VERSION = "OBGBUILD_SOURCES 1";
+
+    private static class Listing
+    {
+        final long modified;
+        final List<String> files;
+        final List<String> directories;
+
+        Listing(long modified, List<String> files, List<String> directories)
+        {
+            this.modified = modified;
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    //One pattern of a DIRECTORY: entry, split into the directory the walk starts at and the glob below it.
+    private static class Pattern
+    {
+        final Path root;
+        final PathMatcher matcher;
+        final int depth;
+        final PathMatcher subtree;
+
+        Pattern(String pattern)
+        {
+            String normalized = pattern.replace('\\', '/');
+            String[] parts = normalized.split("/");
+
+            int glob = 0;
+            while(glob < parts.length && !isGlob(parts[glob]))
+            {
+                ++glob;
+            }
+
+            //A plain directory stands for the .c files directly inside it.
+            if(glob == parts.length)
+            {
+                normalized = normalized.endsWith("/") ? normalized + "*.c" : normalized + "/*.c";
+                parts = normalized.split("/");
+            }
+
+            StringBuilder root = new StringBuilder();
+            for(int i = 0; i < glob; ++i)
+            {
+                root.append(parts[i]).append('/');
+            }
+
+            this.root = Paths.get(root.length() == 0 ? "." : root.toString());
+            this.matcher = FileSystems.getDefault().getPathMatcher("glob:" + (root.length() == 0 ? "./" : "") + normalized);
+            this.depth = normalized.contains("**") ? -1 : parts.length - glob - 1;
+
+            //"dir/**" lets the whole of dir be skipped instead of looking at every file below it.
+            if(normalized.endsWith("/**"))
+            {
+                String prefix = normalized.substring(0, normalized.length() - 3);
+                this.subtree = FileSystems.getDefault().getPathMatcher("glob:" + (root.length() == 0 ? "./" : "") + prefix);
+            }
+            else
+            {
+                this.subtree = null;
+            }
+        }
+
+        private static boolean isGlob(String part)
+        {
+            return part.contains("*") || part.contains("?") || part.contains("[") || part.contains("{");
+        }
+    }
+
+    private final File file;
+    private final Map<String, Listing> cached = new ConcurrentHashMap<>();
+    private final Map<String, Listing> visited = new ConcurrentHashMap<>();
+    private volatile boolean changed = false;
+
+    //Without a file nothing is remembered between scans.
+    private SourceScanner(File file)
+    {
+        this.file = file;
+    }
+
+    public static SourceScanner load(File file)
+    {
+        SourceScanner scanner = new SourceScanner(file);
+        if(file == null || !file.isFile())
+        {
+            return scanner;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return scanner;
+            }
+
+            String directory = null;
+            long modified = 0;
+            List<String> files = null;
+            List<String> directories = null;
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields[0].equals("D") && fields.length == 3)
+                {
+                    if(directory != null)
+                    {
+                        scanner.cached.put(directory, new Listing(modified, files, directories));
+                    }
+
+                    directory = fields[1];
+                    modified = Long.parseLong(fields[2]);
+                    files = new ArrayList<>();
+                    directories = new ArrayList<>();
+                }
+                else if(fields[0].equals("F") && fields.length == 2 && directory != null)
+                {
+                    files.add(fields[1]);
+                }
+                else if(fields[0].equals("S") && fields.length == 2 && directory != null)
+                {
+                    directories.add(fields[1]);
+                }
+            }
+
+            if(directory != null)
+            {
+                scanner.cached.put(directory, new Listing(modified, files, directories));
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            System.err.println("Could not read source listing " + file + ", scanning everything.");
+            scanner.cached.clear();
+        }
+
+        return scanner;
+    }
+
+    //The directories every include pattern of a DIRECTORY: entry starts at.
+    public static List<String> getRoots(String entry)
+    {
+        List<String> roots = new ArrayList<>();
+
+        for(String pattern : CommandLine.split(entry))
+        {
+            if(!pattern.startsWith("!"))
+            {
+                roots.add(new Pattern(pattern).root.toString());
+            }
+        }
+
+        return roots;
+    }
+
+    //Every file the entries stand for, in a stable order and each one once.
+    public List<String> scan(List<String> entries)
+    {
+        Set<String> result = new LinkedHashSet<>();
+
+        for(String entry : entries)
+        {
+            List<Pattern> includes = new ArrayList<>();
+            List<Pattern> excludes = new ArrayList<>();
+
+            for(String pattern : CommandLine.split(entry))
+            {
+                if(pattern.startsWith("!"))
+                {
+                    excludes.add(new Pattern(pattern.substring(1)));
+                }
+                else
+                {
+                    includes.add(new Pattern(pattern));
+                }
+            }
+
+            List<String> files = new ArrayList<>();
+            for(Pattern include : includes)
+            {
+                for(Path path : ForkJoinPool.commonPool().invoke(new DirectoryTask(include.root, include.depth, excludes)))
+                {
+                    if(include.matcher.matches(path) && !isExcluded(path, excludes))
+                    {
+                        files.add(path.toString());
+                    }
+                }
+            }
+
+            Collections.sort(files);
+            result.addAll(files);
+        }
+
+        return new ArrayList<>(result);
+    }
+
+    //Every directory the last scans looked at, for watching them.
+    public List<String> getDirectories()
+    {
+        return new ArrayList<>(visited.keySet());
+    }
+
+    //Only listings of directories that were looked at are kept, the rest belongs to entries that are gone.
+    public void save()
+    {
+        if(file == null || (!changed && visited.size() == cached.size()))
+        {
+            return;
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+
+            for(Map.Entry<String, Listing> e : new TreeMap<>(visited).entrySet())
+            {
+                writer.write("D\t" + e.getKey() + "\t" + e.getValue().modified);
+                writer.newLine();
+
+                for(String name : e.getValue().files)
+                {
+                    writer.write("F\t" + name);
+                    writer.newLine();
+                }
+
+                for(String name : e.getValue().directories)
+                {
+                    writer.write("S\t" + name);
+                    writer.newLine();
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write source listing " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write source listing " + file + ".");
+        }
+    }
+
+    private static boolean isExcluded(Path path, List<Pattern> excludes)
+    {
+        for(Pattern exclude : excludes)
+        {
+            if(exclude.matcher.matches(path))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isExcludedSubtree(Path directory, List<Pattern> excludes)
+    {
+        for(Pattern exclude : excludes)
+        {
+            if(exclude.subtree != null && exclude.subtree.matches(directory))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //The .c files and the subdirectories of one directory, from the last scan while the directory is unchanged.
+    private Listing list(Path directory) throws IOException
+    {
+        String key = directory.toString();
+        long modified = Files.getLastModifiedTime(directory).to(TimeUnit.NANOSECONDS);
+
+        Listing listing = cached.get(key);
+        if(listing == null || listing.modified != modified)
+        {
+            List<String> files = new ArrayList<>();
+            List<String> directories = new ArrayList<>();
+
+            //One level deep, the subdirectories are handed to tasks of their own.
+            Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes)
+                {
+                    String name = path.getFileName().toString();
+
+                    if(attributes.isDirectory())
+                    {
+                        if(!name.equals(".obgbuild"))
+                        {
+                            directories.add(name);
+                        }
+                    }
+                    else if(name.endsWith(".c"))
+                    {
+                        files.add(name);
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e)
+                {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+
+            Collections.sort(files);
+            Collections.sort(directories);
+
+            listing = new Listing(modified, files, directories);
+            changed = true;
+        }
+
+        visited.put(key, listing);
+        return listing;
+    }
+
+    private class DirectoryTask extends RecursiveTask<List<Path>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+        private final int depth;
+        private final List<Pattern> excludes;
+
+        //A depth of -1 goes all the way down.
+        DirectoryTask(Path directory, int depth, List<Pattern> excludes)
+        {
+            this.directory = directory;
+            this.depth = depth;
+            this.excludes = excludes;
+        }
+
+        @Override
+        protected List<Path> compute()
+        {
+            List<Path> result = new ArrayList<>();
+
+            Listing listing;
+            try
+            {
+                listing = list(directory);
+            }
+            catch(IOException e)
+            {
+                return result;
+            }
+
+            for(String name : listing.files)
+            {
+                result.add(directory.resolve(name));
+            }
+
+            if(depth == 0)
+            {
+                return result;
+            }
+
+            List<DirectoryTask> tasks = new ArrayList<>();
+            for(String name : listing.directories)
+            {
+                Path subdirectory = directory.resolve(name);
+                if(!isExcludedSubtree(subdirectory, excludes))
+                {
+                    DirectoryTask task = new DirectoryTask(subdirectory, depth < 0 ? -1 : depth - 1, excludes);
+                    task.fork();
+                    tasks.add(task);
+                }
+            }
+
+            for(DirectoryTask task : tasks)
+            {
+                result.addAll(task.join());
+            }
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+//Puts the objects of a TYPE:static target into an archive with ar, llvm-ar or lib.exe.
+//The size and modification time every member had when it went in are kept in .obgbuild/archive, so after an
+//edit only the objects that were written again are replaced in the archive and the ones that are gone are
+//deleted from it. A different archiver or archive kind, or a missing archive, creates it from scratch.
+//A thin archive (THIN_ARCHIVE:on) only refers to the objects instead of copying them, which ar and llvm-ar
+//can do and lib.exe can't.
+public class StaticLibrary
+{
+    private static final String VERSION = "OBGBUILD_ARCHIVE 1";
+
+    private static class Member
+    {
+        final long size;
+        final long modified;
+
+        Member(long size, long modified)
+        {
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final File output;
+    private final File file;
+    private final File buildDirectory;
+    private final List<String> archiver;
+    private final boolean libStyle;
+    private final boolean thin;
+    private final boolean ltcg;
+    private final String configuration;
+
+    private String archivedConfiguration = "";
+    private Map<String, Member> archived = new LinkedHashMap<>();
+    private Map<String, Member> pending;
+
+    public StaticLibrary(BuildInfo buildInfo, File buildDirectory)
+    {
+        this.output = new File(buildInfo.outputName);
+        this.file = new File(buildDirectory, "archive");
+        this.buildDirectory = buildDirectory;
+        this.archiver = findArchiver(buildInfo);
+        this.libStyle = buildInfo.compiler == CompilerType.CL || buildInfo.compiler == CompilerType.CLANG_CL;
+
+        if(buildInfo.thinArchive && libStyle)
+        {
+            System.out.println("Thin archives need ar, " + CommandLine.join(archiver) + " writes a normal one.");
+        }
+
+        this.thin = buildInfo.thinArchive && !libStyle;
+        this.ltcg = libStyle && buildInfo.compiler == CompilerType.CL
+                && (buildInfo.buildType == BuildType.RELEASE_LTO || buildInfo.buildType == BuildType.RELEASE_THINLTO);
+        this.configuration = CommandLine.join(archiver) + (thin ? " thin" : "") + (ltcg ? " ltcg" : "");
+
+        load();
+    }
+
+    //The commands that bring the archive up to date with members, none when it already is.
+    public List<List<String>> getCommands(List<String> members) throws IOException
+    {
+        pending = new LinkedHashMap<>();
+        for(String member : members)
+        {
+            pending.put(member, stat(member));
+        }
+
+        List<List<String>> commands = new ArrayList<>();
+
+        List<String> changed = new ArrayList<>();
+        for(Map.Entry<String, Member> e : pending.entrySet())
+        {
+            Member before = archived.get(e.getKey());
+            if(before == null || e.getValue() == null || before.size != e.getValue().size || before.modified != e.getValue().modified)
+            {
+                changed.add(e.getKey());
+            }
+        }
+
+        List<String> removed = new ArrayList<>();
+        for(String member : archived.keySet())
+        {
+            if(!pending.containsKey(member))
+            {
+                removed.add(member);
+            }
+        }
+
+        boolean rebuild = !output.isFile() || !configuration.equals(archivedConfiguration);
+
+        //ar finds members of a thin archive by the path they were added with, creating it again costs no more
+        //than deleting from it since nothing is copied.
+        rebuild |= thin && !removed.isEmpty();
+
+        if(rebuild)
+        {
+            Files.deleteIfExists(output.toPath());
+            commands.add(createCommand(createReplaceArguments(new ArrayList<>(pending.keySet()), false), "archive.rsp"));
+            return commands;
+        }
+
+        if(changed.isEmpty() && removed.isEmpty())
+        {
+            return commands;
+        }
+
+        if(libStyle)
+        {
+            //lib.exe reads the old library as one more input and writes it back with the changes.
+            List<String> arguments = CommandLine.of("/NOLOGO", "/OUT:" + output.getPath(), output.getPath());
+            if(ltcg)
+            {
+                arguments.add("/LTCG");
+            }
+
+            for(String member : removed)
+            {
+                arguments.add("/REMOVE:" + member);
+            }
+
+            arguments.addAll(changed);
+            commands.add(createCommand(arguments, "archive.rsp"));
+            return commands;
+        }
+
+        if(!removed.isEmpty())
+        {
+            //Members of a normal archive go by their file name.
+            List<String> arguments = CommandLine.of("dsD", output.getPath());
+            for(String member : removed)
+            {
+                arguments.add(new File(member).getName());
+            }
+
+            commands.add(createCommand(arguments, "archive-remove.rsp"));
+        }
+
+        if(!changed.isEmpty())
+        {
+            commands.add(createCommand(createReplaceArguments(changed, true), "archive.rsp"));
+        }
+
+        return commands;
+    }
+
+    //Remembers what went into the archive when the commands worked, forgets everything when they didn't so the
+    //next build starts over.
+    public void save(boolean succeeded)
+    {
+        if(succeeded)
+        {
+            archived = pending;
+            archivedConfiguration = configuration;
+        }
+        else
+        {
+            archived = new LinkedHashMap<>();
+            archivedConfiguration = "";
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        file.getParentFile().mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+            writer.write("C\t" + archivedConfiguration);
+            writer.newLine();
+
+            for(Map.Entry<String, Member> e : archived.entrySet())
+            {
+                if(e.getValue() != null)
+                {
+                    writer.write("M\t" + e.getKey() + "\t" + e.getValue().size + "\t" + e.getValue().modified);
+                    writer.newLine();
+                }
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write archive state " + file + ".");
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write archive state " + file + ".");
+        }
+    }
+
+    private void load()
+    {
+        if(!file.isFile())
+        {
+            return;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return;
+            }
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t", -1);
+                if(fields[0].equals("C") && fields.length == 2)
+                {
+                    archivedConfiguration = fields[1];
+                }
+                else if(fields[0].equals("M") && fields.length == 4)
+                {
+                    archived.put(fields[1], new Member(Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            System.err.println("Could not read archive state " + file + ", creating the archive again.");
+            archived.clear();
+            archivedConfiguration = "";
+        }
+    }
+
+    //Adds members or replaces the ones with the same name, and writes the symbol index.
+    private List<String> createReplaceArguments(List<String> members, boolean update)
+    {
+        List<String> arguments;
+
+        if(libStyle)
+        {
+            arguments = CommandLine.of("/NOLOGO", "/OUT:" + output.getPath());
+            if(ltcg)
+            {
+                arguments.add("/LTCG");
+            }
+        }
+        else
+        {
+            //D leaves timestamps and owners out so the same objects give the same archive.
+            arguments = CommandLine.of((update ? "rsD" : "rcsD") + (thin ? "T" : ""), output.getPath());
+        }
+
+        arguments.addAll(members);
+        return arguments;
+    }
+
+    private List<String> createCommand(List<String> arguments, String responseFile)
+    {
+        try
+        {
+            return CommandLine.withResponseFile(archiver, arguments, new File(buildDirectory, responseFile), libStyle);
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not write " + responseFile + ", passing the arguments directly: " + e.getMessage());
+
+            List<String> command = new ArrayList<>(archiver);
+            command.addAll(arguments);
+            return command;
+        }
+    }
+
+    private static Member stat(String member)
+    {
+        try
+        {
+            BasicFileAttributes attributes = Files.readAttributes(new File(member).toPath(), BasicFileAttributes.class);
+            return new Member(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+        }
+        catch(IOException e)
+        {
+            return null;
+        }
+    }
+
+    //llvm-ar and llvm-lib go with clang when they are installed, everything else uses what the platform has.
+    //gcc LTO objects need gcc-ar, which gives ar the plugin that writes their symbols into the index.
+    //OBGBUILD_AR overrides the choice.
+    private static List<String> findArchiver(BuildInfo buildInfo)
+    {
+        String override = System.getenv("OBGBUILD_AR");
+        if(override != null && !override.isEmpty())
+        {
+            return CommandLine.split(override);
+        }
+
+        boolean lto = buildInfo.buildType == BuildType.RELEASE_LTO || buildInfo.buildType == BuildType.RELEASE_THINLTO;
+
+        switch(buildInfo.compiler)
+        {
+            case GCC: return CommandLine.of(lto && isOnPath("gcc-ar") ? "gcc-ar" : "ar");
+            case CLANG: return CommandLine.of(isOnPath("llvm-ar") ? "llvm-ar" : "ar");
+            case CLANG_CL: return CommandLine.of(isOnPath("llvm-lib") ? "llvm-lib" : "lib");
+            case CL: return CommandLine.of("lib");
+            default: return CommandLine.of("ar");
+        }
+    }
+
+    static boolean isOnPath(String program)
+    {
+        String path = System.getenv("PATH");
+        if(path == null)
+        {
+            return false;
+        }
+
+        Set<String> names = new HashSet<>();
+        names.add(program);
+        if(OSInfo.OS == OSInfo.WINDOWS)
+        {
+            names.add(program + ".exe");
+        }
+
+        for(String directory : path.split(File.pathSeparator))
+        {
+            for(String name : names)
+            {
+                if(new File(directory, name).isFile())
+                {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+}
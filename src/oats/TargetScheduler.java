@@ -0,0 +1,278 @@
+package oats;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Builds every target of a BuildGraph on one shared pool of workers.
+//Compiles of all targets run side by side, a link starts as soon as its own objects and the outputs
+//of every target it depends on are there.
+public class TargetScheduler
+{
+    private final BuildGraph graph;
+    private final BuildOptions options;
+    private final BuildTrace trace;
+    private final Set<String> headers = new HashSet<>();
+
+    public TargetScheduler(BuildGraph graph, BuildOptions options)
+    {
+        this(graph, options, new BuildTrace(options.tracePath));
+    }
+
+    //The trace may already hold spans from before the graph existed, like reading and parsing the build file.
+    public TargetScheduler(BuildGraph graph, BuildOptions options, BuildTrace trace)
+    {
+        this.graph = graph;
+        this.options = options;
+        this.trace = trace;
+    }
+
+    //Every header the targets included in the last build().
+    public Set<String> getHeaders()
+    {
+        return headers;
+    }
+
+    public void build()
+    {
+        List<BuildInfo> order = graph.getBuildOrder();
+        Map<String, Builder> builders = new HashMap<>();
+        List<Builder> ordered = new ArrayList<>();
+
+        ObjectCache objectCache = null;
+        if(options.useCache)
+        {
+            objectCache = new ObjectCache(new File(options.cacheDirectory), options.cacheSize);
+        }
+
+        RemoteCache remoteCache = null;
+        if(options.remoteCacheUrl != null)
+        {
+            remoteCache = new RemoteCache(options.remoteCacheUrl, options.remoteCacheTimeout);
+        }
+
+        BuildMetrics metrics = BuildMetrics.load(BuildMetrics.getDefaultFile());
+        Map<String, Long> expectedTimes = metrics.getLatestCompileTimes();
+        JobLimiter limiter = new JobLimiter(options.jobs, options.memoryLimit, metrics.getMemoryPerJob(),
+                metrics.getRecentLoad(System.currentTimeMillis()));
+
+        //A make that started this build decides how many jobs there are, otherwise this build can offer its own.
+        JobServer jobServer = JobServer.fromEnvironment(options.environment, options.descriptorDirectory);
+        if(jobServer == null && options.jobServer)
+        {
+            jobServer = JobServer.create(options.jobs);
+        }
+
+        for(BuildInfo target : order)
+        {
+            Builder builder = new Builder(target, options);
+            builder.setCaches(objectCache, remoteCache);
+            builder.setTrace(trace);
+            builder.setExpectedTimes(expectedTimes);
+            builder.setLimiter(limiter);
+            builder.setJobServer(jobServer);
+
+            for(String dependency : target.dependencies)
+            {
+                builder.addDependency(builders.get(dependency));
+            }
+
+            builders.put(target.name, builder);
+            ordered.add(builder);
+        }
+
+        PriorityExecutor pool = new PriorityExecutor(options.jobs, createWorkerFactory());
+        Map<String, CompletableFuture<Integer>> linked = new HashMap<>();
+        boolean succeeded = true;
+
+        long start = System.nanoTime();
+        limiter.start();
+
+        try
+        {
+            for(Builder builder : ordered)
+            {
+                builder.prepare();
+            }
+
+            //Dependencies come first in the order so their compiles are queued first as well.
+            for(Builder builder : ordered)
+            {
+                BuildInfo target = builder.getBuildInfo();
+
+                List<CompletableFuture<Integer>> inputs = new ArrayList<>();
+                for(String dependency : target.dependencies)
+                {
+                    inputs.add(linked.get(dependency));
+                }
+
+                CompletableFuture<Boolean> dependenciesLinked = CompletableFuture.allOf(inputs.toArray(new CompletableFuture<?>[0])).thenApply(ignored ->
+                {
+                    for(CompletableFuture<Integer> input : inputs)
+                    {
+                        if(input.join() != 0)
+                        {
+                            return false;
+                        }
+                    }
+
+                    return true;
+                });
+
+                linked.put(target.name, builder.compile(pool, dependenciesLinked).thenCombineAsync(dependenciesLinked,
+                        (objects, linkable) -> linkable ? builder.link(objects) : 1, pool));
+            }
+
+            for(Builder builder : ordered)
+            {
+                if(linked.get(builder.getBuildInfo().name).join() != 0)
+                {
+                    succeeded = false;
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+            limiter.stop();
+
+            if(jobServer != null)
+            {
+                jobServer.close();
+            }
+
+            for(Builder builder : ordered)
+            {
+                builder.finish();
+                headers.addAll(builder.getHeaders());
+            }
+
+            if(objectCache != null)
+            {
+                objectCache.evict();
+            }
+
+            if(remoteCache != null)
+            {
+                remoteCache.finish();
+            }
+
+            trace.write();
+        }
+
+        long end = System.nanoTime();
+
+        List<String> regressions = recordMetrics(metrics, end - start, succeeded, objectCache, remoteCache, limiter);
+
+        Builder.compilationMessage(succeeded ? 0 : 1);
+
+        double seconds = (double)(end - start) / 1000000000.0;
+        System.out.format("Time to compile: %.2f seconds%n", seconds);
+
+        //Links and archives get their own line, a big debug link can take longer than every compile together.
+        long linkTime = 0;
+        for(BuildTrace.Span span : trace.getSpans("link"))
+        {
+            linkTime += span.end - span.start;
+        }
+
+        if(linkTime > 0)
+        {
+            System.out.format("Time to link: %.2f seconds%n", (double)linkTime / 1000000000.0);
+        }
+
+        if(objectCache != null)
+        {
+            System.out.format("Object cache: %d hits, %d misses%n", objectCache.getHits(), objectCache.getMisses());
+        }
+
+        if(remoteCache != null)
+        {
+            System.out.format("Remote cache: %d hits, %d misses, %d timeouts%s%n",
+                    remoteCache.getHits(), remoteCache.getMisses(), remoteCache.getTimeouts(),
+                    remoteCache.isDisabled() ? ", turned off after a failure" : "");
+        }
+
+        if(limiter.getLowestLimit() < options.jobs)
+        {
+            System.out.format("Memory or load held the build to as few as %d of %d jobs.%n", limiter.getLowestLimit(), options.jobs);
+        }
+
+        for(String regression : regressions)
+        {
+            System.out.println("Regression: " + regression);
+        }
+    }
+
+    //Appends this build to the metrics history and returns the translation units that got noticeably slower.
+    private List<String> recordMetrics(BuildMetrics metrics, long wallTime, boolean succeeded,
+            ObjectCache objectCache, RemoteCache remoteCache, JobLimiter limiter)
+    {
+        //A remote lookup only happens after a local miss, so every lookup starts at the local cache if there is one.
+        int hits = 0;
+        int lookups = 0;
+
+        if(objectCache != null)
+        {
+            hits += objectCache.getHits();
+            lookups += objectCache.getHits() + objectCache.getMisses();
+        }
+
+        if(remoteCache != null)
+        {
+            hits += remoteCache.getHits();
+            if(objectCache == null)
+            {
+                lookups += remoteCache.getHits() + remoteCache.getMisses() + remoteCache.getTimeouts();
+            }
+        }
+
+        BuildMetrics.Record record = new BuildMetrics.Record(System.currentTimeMillis(), wallTime / 1000000,
+                hits, lookups - hits, trace.getPeakConcurrency("compile", "preprocess", "link"), succeeded);
+        record.memoryPerJob = limiter.getMeasuredMemoryPerJob();
+
+        for(BuildTrace.Span span : trace.getSpans("compile"))
+        {
+            record.compileTimes.put(getUnitName(span), (span.end - span.start) / 1000000);
+        }
+
+        for(BuildTrace.Span span : trace.getSpans("link"))
+        {
+            record.linkTimes.put(getUnitName(span), (span.end - span.start) / 1000000);
+        }
+
+        metrics.add(record);
+
+        return metrics.findRegressions(record);
+    }
+
+    private static String getUnitName(BuildTrace.Span span)
+    {
+        if(span.target.isEmpty())
+        {
+            return span.name;
+        }
+
+        return "[" + span.target + "] " + span.name;
+    }
+
+    //Named workers so the rows of the trace can be told apart.
+    private static ThreadFactory createWorkerFactory()
+    {
+        AtomicInteger count = new AtomicInteger(0);
+
+        return runnable ->
+        {
+            Thread thread = new Thread(runnable, "worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
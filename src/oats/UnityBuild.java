@@ -0,0 +1,240 @@
+package oats;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+//Merges sources into generated unity files that each include up to roughly batchSize bytes of source.
+//Which batch a source belongs to is remembered between builds: new sources go into the smallest batch with
+//room left and only a batch that grew past twice the limit gets split, so an edit only rebuilds its own batch.
+public class UnityBuild
+{
+    private static final String VERSION = "OBGBUILD_UNITY 1";
+
+    private final File directory;
+    private final long batchSize;
+    private final Map<Integer, List<String>> batches = new TreeMap<>();
+
+    public UnityBuild(File directory, long batchSize)
+    {
+        this.directory = directory;
+        this.batchSize = batchSize;
+        load();
+    }
+
+    //Returns what should actually be compiled: the unity files followed by the excluded sources.
+    public List<String> createSources(List<String> sources, List<String> excluded) throws IOException
+    {
+        Set<String> excludedPaths = new HashSet<>();
+        for(String file : excluded)
+        {
+            excludedPaths.add(normalize(file));
+        }
+
+        List<String> merged = new ArrayList<>();
+        List<String> separate = new ArrayList<>();
+
+        for(String source : sources)
+        {
+            if(excludedPaths.contains(normalize(source)))
+            {
+                separate.add(source);
+            }
+            else
+            {
+                merged.add(source);
+            }
+        }
+
+        assignBatches(merged);
+        save();
+
+        List<String> result = new ArrayList<>();
+        for(Map.Entry<Integer, List<String>> batch : batches.entrySet())
+        {
+            result.add(writeUnityFile(batch.getKey(), batch.getValue()));
+        }
+
+        result.addAll(separate);
+        return result;
+    }
+
+    private void assignBatches(List<String> sources)
+    {
+        Set<String> wanted = new HashSet<>(sources);
+        Set<String> assigned = new HashSet<>();
+
+        for(List<String> members : batches.values())
+        {
+            members.retainAll(wanted);
+            assigned.addAll(members);
+        }
+
+        batches.values().removeIf(List::isEmpty);
+
+        List<String> added = new ArrayList<>();
+        for(String source : sources)
+        {
+            if(!assigned.contains(source))
+            {
+                added.add(source);
+            }
+        }
+
+        Collections.sort(added);
+
+        Map<Integer, Long> sizes = new HashMap<>();
+        for(Map.Entry<Integer, List<String>> batch : batches.entrySet())
+        {
+            sizes.put(batch.getKey(), sizeOf(batch.getValue()));
+        }
+
+        for(String source : added)
+        {
+            long size = new File(source).length();
+            Integer target = null;
+
+            for(Map.Entry<Integer, Long> batch : sizes.entrySet())
+            {
+                if(batch.getValue() + size <= batchSize && (target == null || batch.getValue() < sizes.get(target)))
+                {
+                    target = batch.getKey();
+                }
+            }
+
+            if(target == null)
+            {
+                target = nextId();
+                batches.put(target, new ArrayList<>());
+                sizes.put(target, 0L);
+            }
+
+            batches.get(target).add(source);
+            sizes.put(target, sizes.get(target) + size);
+        }
+
+        for(Integer id : new ArrayList<>(batches.keySet()))
+        {
+            List<String> members = batches.get(id);
+            if(members.size() > 1 && sizeOf(members) > batchSize * 2)
+            {
+                int half = members.size() / 2;
+                batches.put(nextId(), new ArrayList<>(members.subList(half, members.size())));
+                batches.put(id, new ArrayList<>(members.subList(0, half)));
+            }
+        }
+    }
+
+    private String writeUnityFile(int id, List<String> members) throws IOException
+    {
+        StringBuilder content = new StringBuilder();
+        for(String member : members)
+        {
+            String path = new File(member).getAbsolutePath().replace("\\", "\\\\");
+            content.append("#include \"").append(path).append("\"\n");
+        }
+
+        File file = new File(directory, "unity_" + id + ".c");
+        byte[] bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+
+        //Only touched when the membership changed, anything else would rebuild the batch for nothing.
+        if(!file.isFile() || !Arrays.equals(Files.readAllBytes(file.toPath()), bytes))
+        {
+            directory.mkdirs();
+            Files.write(file.toPath(), bytes);
+        }
+
+        return file.getPath();
+    }
+
+    private long sizeOf(List<String> members)
+    {
+        long size = 0;
+        for(String member : members)
+        {
+            size += new File(member).length();
+        }
+
+        return size;
+    }
+
+    private int nextId()
+    {
+        int id = 0;
+        while(batches.containsKey(id))
+        {
+            ++id;
+        }
+
+        return id;
+    }
+
+    private String normalize(String path)
+    {
+        return new File(path).getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    private void load()
+    {
+        File file = new File(directory, "batches");
+        if(!file.isFile())
+        {
+            return;
+        }
+
+        try(BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8))
+        {
+            if(!VERSION.equals(reader.readLine()))
+            {
+                return;
+            }
+
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split("\t");
+                if(fields.length == 2)
+                {
+                    batches.computeIfAbsent(Integer.parseInt(fields[0]), id -> new ArrayList<>()).add(fields[1]);
+                }
+            }
+        }
+        catch(IOException | NumberFormatException e)
+        {
+            System.err.println("Could not read unity batches " + file + ", regrouping every source.");
+            batches.clear();
+        }
+    }
+
+    private void save() throws IOException
+    {
+        directory.mkdirs();
+
+        try(BufferedWriter writer = Files.newBufferedWriter(new File(directory, "batches").toPath(), StandardCharsets.UTF_8))
+        {
+            writer.write(VERSION);
+            writer.newLine();
+
+            for(Map.Entry<Integer, List<String>> batch : batches.entrySet())
+            {
+                for(String member : batch.getValue())
+                {
+                    writer.write(batch.getKey() + "\t" + member);
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
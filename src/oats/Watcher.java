@@ -0,0 +1,263 @@
+package oats;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+//Rebuilds every time a source, a header or the build file changes. Saving a file usually fires a burst
+//of events so nothing happens until the watched directories have been quiet for a moment.
+//The incremental build takes care of only recompiling what the change affects.
+//Watching a directory doesn't reach into its subdirectories, so besides the directories the build file names
+//the directory of every header the last build included is watched as well.
+public class Watcher
+{
+    private static final long QUIET_PERIOD = 150;
+
+    private final BuildOptions options;
+    private final Path buildFile;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Set<Path> headers = new HashSet<>();
+    private WatchService watchService;
+    private BuildGraph graph;
+
+    public Watcher(BuildOptions options)
+    {
+        this.options = options;
+        this.buildFile = Paths.get(options.buildFile).toAbsolutePath().normalize();
+    }
+
+    public void run()
+    {
+        try(WatchService service = FileSystems.getDefault().newWatchService())
+        {
+            watchService = service;
+            parseBuildFile();
+            build();
+
+            while(true)
+            {
+                boolean buildFileChanged = waitForChanges();
+
+                if(buildFileChanged || graph == null)
+                {
+                    parseBuildFile();
+                }
+
+                build();
+            }
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not watch for changes: " + e.getMessage());
+            throw new BuildFailedException();
+        }
+        catch(InterruptedException | ClosedWatchServiceException e)
+        {
+            System.out.println("Stopped watching.");
+        }
+    }
+
+    private void parseBuildFile() throws IOException
+    {
+        watch(buildFile.getParent());
+
+        try
+        {
+            graph = ParseCache.parse(options.buildFile, new BuildTrace(null));
+        }
+        catch(BuildFailedException e)
+        {
+            graph = null;
+            return;
+        }
+
+        for(BuildInfo target : graph.getTargets())
+        {
+            watchTarget(target);
+        }
+    }
+
+    private void watchTarget(BuildInfo buildInfo) throws IOException
+    {
+        for(String file : buildInfo.sourceFiles)
+        {
+            watch(Paths.get(file).toAbsolutePath().getParent());
+        }
+
+        //Every directory a DIRECTORY: entry reaches. A new subdirectory triggers a build, which watches it as well.
+        SourceScanner scanner = SourceScanner.load(null);
+        scanner.scan(buildInfo.directories);
+        for(String directory : scanner.getDirectories())
+        {
+            watch(Paths.get(directory));
+        }
+
+        for(String includePath : buildInfo.includePaths)
+        {
+            watch(Paths.get(includePath));
+        }
+
+        if(!buildInfo.precompiledHeader.isEmpty())
+        {
+            watch(Paths.get(buildInfo.precompiledHeader).toAbsolutePath().getParent());
+        }
+    }
+
+    //Replaces the headers of the previous build, a header that is no longer included stops mattering.
+    private void watchHeaders(Set<String> included) throws IOException
+    {
+        headers.clear();
+
+        for(String header : included)
+        {
+            Path path = Paths.get(header).toAbsolutePath().normalize();
+            headers.add(path);
+
+            Path directory = path.getParent();
+            if(directory != null && new File(directory.toString()).isDirectory())
+            {
+                watch(directory);
+            }
+        }
+    }
+
+    private void watch(Path directory) throws IOException
+    {
+        Path normalized = directory.toAbsolutePath().normalize();
+        if(directories.containsValue(normalized))
+        {
+            return;
+        }
+
+        WatchKey key = normalized.register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        directories.put(key, normalized);
+    }
+
+    private void build()
+    {
+        if(graph == null)
+        {
+            System.out.println("Fix the build file to continue, watching for changes...");
+            return;
+        }
+
+        TargetScheduler scheduler = new TargetScheduler(new BuildGraph(graph), options);
+        try
+        {
+            scheduler.build();
+        }
+        catch(BuildFailedException e)
+        {
+            //Already reported, the next change gets another try.
+        }
+
+        try
+        {
+            for(BuildInfo target : graph.getTargets())
+            {
+                watchTarget(target);
+            }
+
+            watchHeaders(scheduler.getHeaders());
+        }
+        catch(IOException e)
+        {
+            System.err.println("Could not watch new directories: " + e.getMessage());
+        }
+
+        System.out.println("Watching for changes...");
+    }
+
+    //Blocks until a relevant file changed and the burst of events is over.
+    //Returns whether the build file itself was one of the changed files.
+    private boolean waitForChanges() throws InterruptedException
+    {
+        boolean relevant = false;
+        boolean buildFileChanged = false;
+
+        WatchKey key = watchService.take();
+        while(key != null)
+        {
+            Path directory = directories.get(key);
+
+            for(WatchEvent<?> event : key.pollEvents())
+            {
+                if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+                {
+                    relevant = true;
+                    continue;
+                }
+
+                Path path = directory.resolve((Path)event.context());
+
+                if(path.equals(buildFile))
+                {
+                    buildFileChanged = true;
+                    relevant = true;
+                }
+                else if(headers.contains(path) || isSourceOrHeader(path) || (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && isSourceDirectory(path)))
+                {
+                    relevant = true;
+                }
+            }
+
+            key.reset();
+
+            if(relevant)
+            {
+                key = watchService.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS);
+            }
+            else
+            {
+                key = watchService.take();
+            }
+        }
+
+        return buildFileChanged;
+    }
+
+    //The build writes objects, depfiles and its output next to the sources, those must not trigger another build.
+    private boolean isSourceOrHeader(Path path)
+    {
+        String name = path.getFileName().toString();
+        if(!name.endsWith(".c") && !name.endsWith(".h"))
+        {
+            return false;
+        }
+
+        return !isBuildState(path) && !new File(path.toString()).isDirectory();
+    }
+
+    private boolean isSourceDirectory(Path path)
+    {
+        return !isBuildState(path) && new File(path.toString()).isDirectory();
+    }
+
+    private boolean isBuildState(Path path)
+    {
+        for(Path part : path)
+        {
+            if(part.toString().equals(".obgbuild"))
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}